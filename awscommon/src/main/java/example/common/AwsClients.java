@@ -0,0 +1,281 @@
+/**
+ * AwsClients class with the AWS clients shared by the examples.
+ * There is a single client per service and region, created the first time it is used,
+ * so every caller reuses the same connection pool instead of building its own client.
+ * All the sync clients share one Apache HTTP client and all the async clients share
+ * one Netty HTTP client, both tuned with the ClientSettings.
+ * The clients must not be closed by the callers: they are closed when the JVM exits.
+ * When the metrics are enabled in the ClientSettings, every client publishes the metrics
+ * of its API calls to one ClientMetrics, written when the clients are closed.
+ */
+
+package example.common;
+
+import io.netty.channel.ChannelOption;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.lambda.LambdaAsyncClient;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+public final class AwsClients {
+    private static final Map<String, SdkAutoCloseable> CLIENTS = new ConcurrentHashMap<>();
+
+    private static ClientSettings settings;
+    private static SdkHttpClient httpClient;
+    private static SdkAsyncHttpClient asyncHttpClient;
+    private static ClientMetrics metrics;
+    private static boolean shutdownHook;
+
+    private AwsClients() {
+    }
+
+    /**
+     * Set the settings of the clients. It must be called before any client is created.
+     */
+    public static synchronized void configure(ClientSettings clientSettings) {
+        if (httpClient != null || asyncHttpClient != null) {
+            throw new IllegalStateException("AWS clients already created");
+        }
+        settings = clientSettings;
+    }
+
+    /**
+     * Return the settings of the clients, read from the environment if they were not configured
+     */
+    public static synchronized ClientSettings settings() {
+        if (settings == null) {
+            settings = ClientSettings.fromEnvironment();
+        }
+        return settings;
+    }
+
+    /**
+     * Return the S3 client of the default region (from the environment, as in AWS Lambda)
+     */
+    public static S3Client s3() {
+        return s3(null);
+    }
+
+    public static S3Client s3(Region region) {
+        return client("s3", region, () -> S3Client.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(httpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    public static S3AsyncClient s3Async(Region region) {
+        return client("s3-async", region, () -> S3AsyncClient.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(asyncHttpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    /**
+     * Return the Lambda client of the default region (from the environment)
+     */
+    public static LambdaClient lambda() {
+        return lambda(null);
+    }
+
+    public static LambdaClient lambda(Region region) {
+        return client("lambda", region, () -> LambdaClient.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(httpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    public static LambdaAsyncClient lambdaAsync(Region region) {
+        return client("lambda-async", region, () -> LambdaAsyncClient.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(asyncHttpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    /**
+     * Return the EC2 client of the default region (from the environment)
+     */
+    public static Ec2Client ec2() {
+        return ec2(null);
+    }
+
+    public static Ec2Client ec2(Region region) {
+        return client("ec2", region, () -> Ec2Client.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(httpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    public static Ec2AsyncClient ec2Async(Region region) {
+        return client("ec2-async", region, () -> Ec2AsyncClient.builder()
+                .applyMutation(builder -> { if (region != null) builder.region(region); })
+                .httpClient(asyncHttpClient())
+                .overrideConfiguration(overrideConfiguration())
+                .build());
+    }
+
+    /**
+     * Return the metrics published by the clients, null if they are not enabled
+     */
+    public static synchronized ClientMetrics metrics() {
+        if (metrics == null && settings().isMetricsEnabled()) {
+            metrics = new ClientMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Close all the clients and their HTTP clients, and write the metrics of their API calls.
+     * It is called when the JVM exits, new clients can be created afterwards.
+     */
+    public static synchronized void closeAll() {
+        writeMetrics();
+        for (SdkAutoCloseable client : CLIENTS.values()) {
+            client.close();
+        }
+        CLIENTS.clear();
+        // The HTTP clients given to the builders are not closed by the service clients
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+        if (asyncHttpClient != null) {
+            asyncHttpClient.close();
+            asyncHttpClient = null;
+        }
+    }
+
+    /**
+     * Return the client of a service and region, creating it the first time
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends SdkAutoCloseable> T client(String service, Region region, Supplier<T> factory) {
+        String key = service + "/" + (region != null ? region.id() : "default");
+        SdkAutoCloseable client = CLIENTS.get(key);
+        if (client == null) {
+            synchronized (AwsClients.class) {
+                client = CLIENTS.get(key);
+                if (client == null) {
+                    client = factory.get();
+                    CLIENTS.put(key, client);
+                    registerShutdownHook();
+                }
+            }
+        }
+        return (T) client;
+    }
+
+    /**
+     * Return the HTTP client shared by the sync clients.
+     * It can be given to a client built with a configuration of its own, for example another endpoint.
+     */
+    public static synchronized SdkHttpClient httpClient() {
+        if (httpClient == null) {
+            ClientSettings clientSettings = settings();
+            ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+                    .maxConnections(clientSettings.getMaxConnections())
+                    .connectionTimeout(clientSettings.getConnectionTimeout())
+                    .socketTimeout(clientSettings.getSocketTimeout())
+                    .connectionAcquisitionTimeout(clientSettings.getConnectionAcquisitionTimeout())
+                    .connectionMaxIdleTime(clientSettings.getConnectionMaxIdleTime())
+                    .useIdleConnectionReaper(true);
+            if (!clientSettings.getConnectionTimeToLive().isZero()) {
+                builder.connectionTimeToLive(clientSettings.getConnectionTimeToLive());
+            }
+            httpClient = builder.build();
+            registerShutdownHook();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Return the HTTP client shared by the async clients
+     */
+    public static synchronized SdkAsyncHttpClient asyncHttpClient() {
+        if (asyncHttpClient == null) {
+            ClientSettings clientSettings = settings();
+            NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient.builder()
+                    .maxConcurrency(clientSettings.getMaxConnections())
+                    .connectionTimeout(clientSettings.getConnectionTimeout())
+                    .readTimeout(clientSettings.getSocketTimeout())
+                    .writeTimeout(clientSettings.getSocketTimeout())
+                    .connectionAcquisitionTimeout(clientSettings.getConnectionAcquisitionTimeout())
+                    .connectionMaxIdleTime(clientSettings.getConnectionMaxIdleTime())
+                    .putChannelOption(ChannelOption.SO_KEEPALIVE, clientSettings.isTcpKeepAlive())
+                    .useIdleConnectionReaper(true);
+            if (!clientSettings.getConnectionTimeToLive().isZero()) {
+                builder.connectionTimeToLive(clientSettings.getConnectionTimeToLive());
+            }
+            asyncHttpClient = builder.build();
+            registerShutdownHook();
+        }
+        return asyncHttpClient;
+    }
+
+    /**
+     * Return the configuration of the shared clients: API call timeout and metrics.
+     * It can be given to a client built with a configuration of its own.
+     */
+    public static ClientOverrideConfiguration overrideConfiguration() {
+        ClientOverrideConfiguration.Builder builder = ClientOverrideConfiguration.builder();
+        if (!settings().getApiCallTimeout().isZero()) {
+            builder.apiCallTimeout(settings().getApiCallTimeout());
+        }
+        ClientMetrics clientMetrics = metrics();
+        if (clientMetrics != null) {
+            builder.addMetricPublisher(clientMetrics);
+            builder.addExecutionInterceptor(clientMetrics.interceptor());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Write the metrics to the metrics file or the standard error, and start new ones
+     */
+    private static void writeMetrics() {
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        String file = settings().getMetricsFile();
+        if (file.isEmpty()) {
+            metrics.write(new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8)),
+                    settings().getMetrics());
+        } else {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                metrics.write(out, settings().getMetrics());
+            } catch (IOException e) {
+                System.err.println("Error writing the metrics to " + file + ": " + e.getMessage());
+            }
+        }
+        metrics.clear();
+    }
+
+    private static synchronized void registerShutdownHook() {
+        if (!shutdownHook) {
+            Runtime.getRuntime().addShutdownHook(new Thread(AwsClients::closeAll, "aws-clients-shutdown"));
+            shutdownHook = true;
+        }
+    }
+}
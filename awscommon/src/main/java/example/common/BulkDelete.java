@@ -0,0 +1,189 @@
+/**
+ * BulkDelete class with methods for deleting many objects of a S3 bucket.
+ * The keys are packed into full batches of up to 1000 keys and each batch is deleted
+ * with a single DeleteObjects request. Several batches run concurrently.
+ * The keys that could not be deleted are reported one by one from the responses.
+ * It is shared by the examples that delete many objects: S3DeleteObject, S3Delete (to drain
+ * a bucket) and S3Move (to delete the objects moved).
+ */
+
+package example.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+
+public class BulkDelete {
+    public static final int MAX_BATCH_SIZE = 1000;   // Maximum number of keys of a DeleteObjects request
+
+    private final S3Client s3client;
+    private final int threads;
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed  = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errorsShown = new AtomicLong();
+    private long maxErrorsShown = Long.MAX_VALUE;
+    private long progressBatches;
+
+    public BulkDelete(S3Client s3client, int threads) {
+        this.s3client = s3client;
+        this.threads  = Math.max(threads, 1);
+    }
+
+    /**
+     * Print only the first per-key errors, the rest are only counted
+     */
+    public void setMaxErrorsShown(long maxErrorsShown) {
+        this.maxErrorsShown = Math.max(maxErrorsShown, 0);
+    }
+
+    /**
+     * Print the number of objects deleted every number of batches, zero for no progress
+     */
+    public void setProgressBatches(long progressBatches) {
+        this.progressBatches = Math.max(progressBatches, 0);
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Delete all the keys returned by an iterator.
+     * The iterator is consumed while the batches are being deleted, so the keys
+     * can be streamed from a file or from a listing.
+     */
+    public void delete(String bucketName, Iterator<String> keys) throws InterruptedException {
+        deleteObjects(bucketName, new Iterator<ObjectIdentifier>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public ObjectIdentifier next() {
+                return ObjectIdentifier.builder().key(keys.next()).build();
+            }
+        });
+    }
+
+    /**
+     * Delete all the objects returned by an iterator, each one a key with an optional version id.
+     * The iterator is consumed while the batches are being deleted.
+     */
+    public void deleteObjects(String bucketName, Iterator<ObjectIdentifier> objects) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Limit the batches waiting for a worker, so the keys are not read too far ahead
+        Semaphore pending = new Semaphore(threads * 2);
+
+        try {
+            List<ObjectIdentifier> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (objects.hasNext()) {
+                ObjectIdentifier object = objects.next();
+                if (object.key().isEmpty()) {
+                    continue;
+                }
+                batch.add(object);
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    submit(pool, pending, bucketName, batch);
+                    batch = new ArrayList<>(MAX_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(pool, pending, bucketName, batch);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Delete up to 1000 keys with a single DeleteObjects request in the calling thread.
+     * Return the number of keys that could not be deleted.
+     */
+    public int delete(String bucketName, List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<ObjectIdentifier> batch = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            batch.add(ObjectIdentifier.builder().key(key).build());
+        }
+        return deleteBatch(bucketName, batch);
+    }
+
+    /**
+     * Submit a batch to the pool, waiting if too many batches are pending
+     */
+    private void submit(ExecutorService pool, Semaphore pending, String bucketName, List<ObjectIdentifier> batch)
+            throws InterruptedException {
+        pending.acquire();
+        pool.execute(() -> {
+            try {
+                deleteBatch(bucketName, batch);
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    /**
+     * Delete a batch of up to 1000 objects with a single DeleteObjects request in the calling thread
+     * and report the per-key errors. Return the number of objects that could not be deleted.
+     */
+    public int deleteBatch(String bucketName, List<ObjectIdentifier> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(batch).quiet(true).build())
+                .build();
+
+        try {
+            // In quiet mode the response only contains the keys that could not be deleted
+            DeleteObjectsResponse delRes = s3client.deleteObjects(delReq);
+            long request = requests.incrementAndGet();
+            List<S3Error> errors = delRes.errors();
+            deleted.addAndGet(batch.size() - errors.size());
+            failed.addAndGet(errors.size());
+            for (S3Error error : errors) {
+                if (errorsShown.incrementAndGet() <= maxErrorsShown) {
+                    System.out.println("Error deleting \"" + error.key() + "\": " +
+                            error.code() + " - " + error.message());
+                }
+            }
+            if (progressBatches > 0 && request % progressBatches == 0) {
+                System.out.println("Deleted " + deleted.get() + " objects ...");
+            }
+            return errors.size();
+        } catch (SdkException e) {
+            failed.addAndGet(batch.size());
+            System.out.println("Error deleting a batch of " + batch.size() + " keys, from \"" +
+                    batch.get(0).key() + "\": " + e.getMessage());
+            return batch.size();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * ClientMetrics class with a SDK MetricPublisher that aggregates the metrics of the API calls
+ * of all the clients, by service and operation:
+ * calls, failures, attempts and retries, duration of the API calls and of each attempt,
+ * backoff delay between the attempts, state of the connection pool when an attempt starts,
+ * and bytes sent and received.
+ * The durations go to histograms with fixed buckets, updated without locks,
+ * and the metrics can be written as JSON or as Prometheus text.
+ * The SDK does not publish the bytes transferred, they are measured by an ExecutionInterceptor
+ * from the length of the bodies (the Content-Length header of the response) and reported as
+ * custom metrics of each attempt, so they are aggregated with the other metrics of the operation.
+ * A body sent or received without a known length, as a chunked response, is counted as 0 bytes.
+ */
+
+package example.common;
+
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.metrics.MetricCategory;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricCollector;
+import software.amazon.awssdk.metrics.MetricLevel;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+public class ClientMetrics implements MetricPublisher {
+    public static final String FORMAT_JSON       = "json";
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+
+    // Upper bounds of the buckets of the duration histograms, in milliseconds
+    private static final double[] BUCKETS = {
+        1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+
+    // Bytes of the bodies of an attempt, reported by the BytesInterceptor
+    private static final SdkMetric<Long> BYTES_SENT = SdkMetric.create(
+            "AwsExamplesBytesSent", Long.class, MetricLevel.INFO, MetricCategory.CUSTOM);
+    private static final SdkMetric<Long> BYTES_RECEIVED = SdkMetric.create(
+            "AwsExamplesBytesReceived", Long.class, MetricLevel.INFO, MetricCategory.CUSTOM);
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final ExecutionInterceptor interceptor = new BytesInterceptor();
+
+    /**
+     * Return the interceptor that counts the bytes sent and received
+     */
+    public ExecutionInterceptor interceptor() {
+        return interceptor;
+    }
+
+    @Override
+    public void publish(MetricCollection apiCall) {
+        OperationMetrics metrics = operation(first(apiCall, CoreMetric.SERVICE_ID),
+                first(apiCall, CoreMetric.OPERATION_NAME));
+
+        metrics.calls.increment();
+        if (Boolean.FALSE.equals(first(apiCall, CoreMetric.API_CALL_SUCCESSFUL))) {
+            metrics.failures.increment();
+        }
+        Integer retries = first(apiCall, CoreMetric.RETRY_COUNT);
+        if (retries != null) {
+            metrics.retries.add(retries);
+        }
+        Duration apiCallDuration = first(apiCall, CoreMetric.API_CALL_DURATION);
+        if (apiCallDuration != null) {
+            metrics.apiCallDuration.record(apiCallDuration);
+        }
+
+        for (MetricCollection attempt : apiCall.children()) {
+            metrics.attempts.increment();
+            Duration serviceCallDuration = first(attempt, CoreMetric.SERVICE_CALL_DURATION);
+            if (serviceCallDuration != null) {
+                metrics.serviceCallDuration.record(serviceCallDuration);
+            }
+            Duration backoffDelay = first(attempt, CoreMetric.BACKOFF_DELAY_DURATION);
+            if (backoffDelay != null) {
+                metrics.backoffDelayNanos.add(backoffDelay.toNanos());
+            }
+            Long sent = first(attempt, BYTES_SENT);
+            if (sent != null) {
+                metrics.bytesSent.add(sent);
+            }
+            Long received = first(attempt, BYTES_RECEIVED);
+            if (received != null) {
+                metrics.bytesReceived.add(received);
+            }
+
+            // State of the connection pool of the HTTP client when the attempt started
+            for (MetricCollection httpClient : attempt.children()) {
+                Integer leased = first(httpClient, HttpMetric.LEASED_CONCURRENCY);
+                if (leased != null) {
+                    metrics.maxLeasedConnections.accumulateAndGet(leased, Math::max);
+                }
+                Integer pending = first(httpClient, HttpMetric.PENDING_CONCURRENCY_ACQUIRES);
+                if (pending != null && pending > 0) {
+                    metrics.attemptsWaitingForConnection.increment();
+                    metrics.maxPendingAcquires.accumulateAndGet(pending, Math::max);
+                }
+            }
+        }
+    }
+
+    /**
+     * The metrics are kept after the clients are closed, so they can be written at exit
+     */
+    @Override
+    public void close() {
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * Write the metrics in a format: json or prometheus
+     */
+    public void write(PrintWriter out, String format) {
+        // Sorted by service and operation
+        Map<String, OperationMetrics> sorted = new TreeMap<>(operations);
+        if (format.equals(FORMAT_PROMETHEUS)) {
+            writePrometheus(out, sorted);
+        } else {
+            writeJson(out, sorted);
+        }
+        out.flush();
+    }
+
+    private OperationMetrics operation(String service, String operation) {
+        String serviceName = service != null ? service : "unknown";
+        String operationName = operation != null ? operation : "unknown";
+        return operations.computeIfAbsent(serviceName + ":" + operationName,
+                key -> new OperationMetrics(serviceName, operationName));
+    }
+
+    private static <T> T first(MetricCollection collection, SdkMetric<T> metric) {
+        List<T> values = collection.metricValues(metric);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static void writeJson(PrintWriter out, Map<String, OperationMetrics> sorted) {
+        out.println("{\"operations\": [");
+        int i = 0;
+        for (OperationMetrics metrics : sorted.values()) {
+            out.printf(Locale.ROOT, "  {\"service\": \"%s\", \"operation\": \"%s\", \"calls\": %d, \"failures\": %d, " +
+                            "\"attempts\": %d, \"retries\": %d,%n",
+                    metrics.service, metrics.operation, metrics.calls.sum(), metrics.failures.sum(),
+                    metrics.attempts.sum(), metrics.retries.sum());
+            out.println("   \"apiCallDurationMs\": " + metrics.apiCallDuration.toJson() + ",");
+            out.println("   \"serviceCallDurationMs\": " + metrics.serviceCallDuration.toJson() + ",");
+            out.printf(Locale.ROOT, "   \"backoffDelayMs\": %.3f, \"attemptsWaitingForConnection\": %d, " +
+                            "\"maxPendingConnectionAcquires\": %d, \"maxLeasedConnections\": %d,%n",
+                    metrics.backoffDelayNanos.sum() / 1e6, metrics.attemptsWaitingForConnection.sum(),
+                    metrics.maxPendingAcquires.get(), metrics.maxLeasedConnections.get());
+            out.printf(Locale.ROOT, "   \"bytesSent\": %d, \"bytesReceived\": %d}%s%n",
+                    metrics.bytesSent.sum(), metrics.bytesReceived.sum(), ++i < sorted.size() ? "," : "");
+        }
+        out.println("]}");
+    }
+
+    private static void writePrometheus(PrintWriter out, Map<String, OperationMetrics> sorted) {
+        writeHeader(out, "awsexamples_api_calls_total", "counter", "API calls");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_api_calls_total", metrics, metrics.calls.sum());
+        }
+        writeHeader(out, "awsexamples_api_call_failures_total", "counter", "API calls that failed");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_api_call_failures_total", metrics, metrics.failures.sum());
+        }
+        writeHeader(out, "awsexamples_api_call_attempts_total", "counter", "Attempts of the API calls");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_api_call_attempts_total", metrics, metrics.attempts.sum());
+        }
+        writeHeader(out, "awsexamples_api_call_duration_seconds", "histogram",
+                "Duration of the API calls, including the retries");
+        for (OperationMetrics metrics : sorted.values()) {
+            metrics.apiCallDuration.writePrometheus(out, "awsexamples_api_call_duration_seconds", metrics.labels());
+        }
+        writeHeader(out, "awsexamples_service_call_duration_seconds", "histogram",
+                "Duration of each attempt, from sending the request to receiving the response");
+        for (OperationMetrics metrics : sorted.values()) {
+            metrics.serviceCallDuration.writePrometheus(out, "awsexamples_service_call_duration_seconds",
+                    metrics.labels());
+        }
+        writeHeader(out, "awsexamples_backoff_delay_seconds_total", "counter", "Time waiting between attempts");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_backoff_delay_seconds_total", metrics,
+                    metrics.backoffDelayNanos.sum() / 1e9);
+        }
+        writeHeader(out, "awsexamples_attempts_waiting_for_connection_total", "counter",
+                "Attempts that started while other requests were waiting for a pooled connection");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_attempts_waiting_for_connection_total", metrics,
+                    metrics.attemptsWaitingForConnection.sum());
+        }
+        writeHeader(out, "awsexamples_leased_connections_max", "gauge",
+                "Maximum number of pooled connections in use when an attempt started");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_leased_connections_max", metrics, metrics.maxLeasedConnections.get());
+        }
+        writeHeader(out, "awsexamples_bytes_sent_total", "counter", "Bytes of the request bodies");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_bytes_sent_total", metrics, metrics.bytesSent.sum());
+        }
+        writeHeader(out, "awsexamples_bytes_received_total", "counter", "Bytes of the response bodies");
+        for (OperationMetrics metrics : sorted.values()) {
+            writeSample(out, "awsexamples_bytes_received_total", metrics, metrics.bytesReceived.sum());
+        }
+    }
+
+    private static void writeHeader(PrintWriter out, String name, String type, String help) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+    }
+
+    private static void writeSample(PrintWriter out, String name, OperationMetrics metrics, double value) {
+        out.println(name + "{" + metrics.labels() + "} " + formatValue(value));
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+
+    /**
+     * Metrics of an operation of a service
+     */
+    private static class OperationMetrics {
+        final String service;
+        final String operation;
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder attempts = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final Histogram apiCallDuration = new Histogram();
+        final Histogram serviceCallDuration = new Histogram();
+        final LongAdder backoffDelayNanos = new LongAdder();
+        final LongAdder attemptsWaitingForConnection = new LongAdder();
+        final AtomicLong maxPendingAcquires = new AtomicLong();
+        final AtomicLong maxLeasedConnections = new AtomicLong();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+
+        OperationMetrics(String service, String operation) {
+            this.service = service;
+            this.operation = operation;
+        }
+
+        String labels() {
+            return "service=\"" + service + "\",operation=\"" + operation + "\"";
+        }
+    }
+
+    /**
+     * Histogram of durations with the fixed BUCKETS, plus a bucket for the longer durations
+     */
+    private static class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(Duration duration) {
+            long nanos = duration.toNanos();
+            double millis = nanos / 1e6;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Return the percentile in milliseconds, interpolated inside its bucket
+         */
+        double percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            double max = maxNanos.get() / 1e6;
+            double rank = percentile / 100 * count;
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                long inBucket = counts.get(i);
+                if (inBucket > 0 && seen + inBucket >= rank) {
+                    double lower = i == 0 ? 0 : BUCKETS[i - 1];
+                    double upper = i < BUCKETS.length ? Math.min(BUCKETS[i], max) : max;
+                    return lower + (upper - lower) * (rank - seen) / inBucket;
+                }
+                seen += inBucket;
+            }
+            return max;
+        }
+
+        String toJson() {
+            long count = count();
+            return String.format(Locale.ROOT,
+                    "{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+                    count, count == 0 ? 0 : sumNanos.sum() / 1e6 / count,
+                    percentile(50), percentile(90), percentile(99), maxNanos.get() / 1e6);
+        }
+
+        void writePrometheus(PrintWriter out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                out.println(name + "_bucket{" + labels + ",le=\"" + formatValue(BUCKETS[i] / 1000) + "\"} " +
+                        cumulative);
+            }
+            cumulative += counts.get(BUCKETS.length);
+            out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative);
+            out.println(name + "_sum{" + labels + "} " + formatValue(sumNanos.sum() / 1e9));
+            out.println(name + "_count{" + labels + "} " + cumulative);
+        }
+    }
+
+    /**
+     * Interceptor that measures the bytes of the request and response bodies of each attempt.
+     * They are reported to the metric collector of the attempt, not added to the operation here,
+     * because the service name of the execution attributes ("Ec2") is not the service id of the
+     * published metrics ("EC2").
+     */
+    private static class BytesInterceptor implements ExecutionInterceptor {
+        @Override
+        public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+            MetricCollector attempt =
+                    executionAttributes.getAttribute(SdkExecutionAttribute.API_CALL_ATTEMPT_METRIC_COLLECTOR);
+            if (attempt == null) {
+                return;
+            }
+
+            long sent = context.requestBody().map(RequestBody::contentLength)
+                    .orElseGet(() -> context.asyncRequestBody().flatMap(AsyncRequestBody::contentLength)
+                            .orElseGet(() -> contentLength(context.httpRequest().firstMatchingHeader("Content-Length")
+                                    .orElse(null))));
+            attempt.reportMetric(BYTES_SENT, sent);
+            // The response to a HEAD request has the length of the object but no body
+            long received = 0;
+            if (context.httpRequest().method() != SdkHttpMethod.HEAD) {
+                received = contentLength(context.httpResponse().firstMatchingHeader("Content-Length").orElse(null));
+            }
+            attempt.reportMetric(BYTES_RECEIVED, received);
+        }
+
+        private long contentLength(String header) {
+            try {
+                return header != null ? Long.parseLong(header) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * ClientSettings class with the tuning of the HTTP clients used by AwsClients:
+ * connection pool size, timeouts and keep-alive.
+ * Every setting has a default value that can be overridden with a system property
+ * "awsexamples.<name>" or with an environment variable "AWSEXAMPLES_<NAME>",
+ * for example -Dawsexamples.maxConnections=200 or AWSEXAMPLES_MAX_CONNECTIONS=200.
+ * The settings also enable the metrics of the API calls of the clients.
+ */
+
+package example.common;
+
+import java.time.Duration;
+
+public class ClientSettings {
+    private final int maxConnections;
+    private final Duration connectionTimeout;
+    private final Duration socketTimeout;
+    private final Duration connectionAcquisitionTimeout;
+    private final Duration connectionMaxIdleTime;
+    private final Duration connectionTimeToLive;
+    private final boolean tcpKeepAlive;
+    private final Duration apiCallTimeout;
+    private final String metrics;
+    private final String metricsFile;
+
+    private ClientSettings(Builder builder) {
+        this.maxConnections               = builder.maxConnections;
+        this.connectionTimeout            = builder.connectionTimeout;
+        this.socketTimeout                = builder.socketTimeout;
+        this.connectionAcquisitionTimeout = builder.connectionAcquisitionTimeout;
+        this.connectionMaxIdleTime        = builder.connectionMaxIdleTime;
+        this.connectionTimeToLive         = builder.connectionTimeToLive;
+        this.tcpKeepAlive                 = builder.tcpKeepAlive;
+        this.apiCallTimeout               = builder.apiCallTimeout;
+        this.metrics                      = builder.metrics;
+        this.metricsFile                  = builder.metricsFile;
+    }
+
+    /**
+     * Return a builder with the default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Return the default settings, overridden by the system properties and environment variables
+     */
+    public static ClientSettings fromEnvironment() {
+        Builder builder = builder();
+        builder.maxConnections((int) getLong("maxConnections", builder.maxConnections));
+        builder.connectionTimeout(getMillis("connectionTimeout", builder.connectionTimeout));
+        builder.socketTimeout(getMillis("socketTimeout", builder.socketTimeout));
+        builder.connectionAcquisitionTimeout(
+                getMillis("connectionAcquisitionTimeout", builder.connectionAcquisitionTimeout));
+        builder.connectionMaxIdleTime(getMillis("connectionMaxIdleTime", builder.connectionMaxIdleTime));
+        builder.connectionTimeToLive(getMillis("connectionTimeToLive", builder.connectionTimeToLive));
+        builder.tcpKeepAlive(Boolean.parseBoolean(getSetting("tcpKeepAlive", String.valueOf(builder.tcpKeepAlive))));
+        builder.apiCallTimeout(getMillis("apiCallTimeout", builder.apiCallTimeout));
+        builder.metrics(getSetting("metrics", builder.metrics));
+        builder.metricsFile(getSetting("metricsFile", builder.metricsFile));
+        return builder.build();
+    }
+
+    /**
+     * Return a builder with these settings
+     */
+    public Builder toBuilder() {
+        return builder()
+                .maxConnections(maxConnections)
+                .connectionTimeout(connectionTimeout)
+                .socketTimeout(socketTimeout)
+                .connectionAcquisitionTimeout(connectionAcquisitionTimeout)
+                .connectionMaxIdleTime(connectionMaxIdleTime)
+                .connectionTimeToLive(connectionTimeToLive)
+                .tcpKeepAlive(tcpKeepAlive)
+                .apiCallTimeout(apiCallTimeout)
+                .metrics(metrics)
+                .metricsFile(metricsFile);
+    }
+
+    /**
+     * Maximum number of pooled connections of a sync client, or of concurrent requests of an async client
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Time to establish a connection
+     */
+    public Duration getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Time to wait for data on an open connection
+     */
+    public Duration getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Time to wait for a connection of the pool when all of them are in use
+     */
+    public Duration getConnectionAcquisitionTimeout() {
+        return connectionAcquisitionTimeout;
+    }
+
+    /**
+     * Time an idle connection is kept in the pool
+     */
+    public Duration getConnectionMaxIdleTime() {
+        return connectionMaxIdleTime;
+    }
+
+    /**
+     * Maximum time a connection is reused, zero for no limit
+     */
+    public Duration getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
+
+    /**
+     * Send TCP keep-alive probes on idle connections of the async clients.
+     * The Apache client of this SDK version does not expose the option, its idle
+     * connections are only bounded by the max idle time and the time to live.
+     */
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    /**
+     * Maximum time of an API call including its retries, zero for no limit
+     */
+    public Duration getApiCallTimeout() {
+        return apiCallTimeout;
+    }
+
+    /**
+     * Format of the metrics of the API calls written at exit: json or prometheus,
+     * empty to not collect them
+     */
+    public String getMetrics() {
+        return metrics;
+    }
+
+    public boolean isMetricsEnabled() {
+        return !metrics.isEmpty();
+    }
+
+    /**
+     * File the metrics are written to, empty for the standard error
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientSettings{maxConnections=" + maxConnections +
+                ", connectionTimeout=" + connectionTimeout +
+                ", socketTimeout=" + socketTimeout +
+                ", connectionAcquisitionTimeout=" + connectionAcquisitionTimeout +
+                ", connectionMaxIdleTime=" + connectionMaxIdleTime +
+                ", connectionTimeToLive=" + connectionTimeToLive +
+                ", tcpKeepAlive=" + tcpKeepAlive +
+                ", apiCallTimeout=" + apiCallTimeout +
+                ", metrics=" + metrics +
+                ", metricsFile=" + metricsFile + "}";
+    }
+
+    /**
+     * Return the value of a setting from the system properties or the environment variables
+     */
+    private static String getSetting(String name, String defaultValue) {
+        String value = System.getProperty("awsexamples." + name);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv("AWSEXAMPLES_" + name.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+        }
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private static long getLong(String name, long defaultValue) {
+        try {
+            return Long.parseLong(getSetting(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static Duration getMillis(String name, Duration defaultValue) {
+        return Duration.ofMillis(getLong(name, defaultValue.toMillis()));
+    }
+
+
+    /**
+     * Builder of ClientSettings
+     */
+    public static class Builder {
+        private int maxConnections = 50;
+        private Duration connectionTimeout = Duration.ofSeconds(2);
+        private Duration socketTimeout = Duration.ofSeconds(30);
+        private Duration connectionAcquisitionTimeout = Duration.ofSeconds(10);
+        private Duration connectionMaxIdleTime = Duration.ofSeconds(60);
+        private Duration connectionTimeToLive = Duration.ZERO;
+        private boolean tcpKeepAlive = true;
+        private Duration apiCallTimeout = Duration.ZERO;
+        private String metrics = "";
+        private String metricsFile = "";
+
+        private Builder() {
+        }
+
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = Math.max(maxConnections, 1);
+            return this;
+        }
+
+        public Builder connectionTimeout(Duration connectionTimeout) {
+            this.connectionTimeout = connectionTimeout;
+            return this;
+        }
+
+        public Builder socketTimeout(Duration socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+
+        public Builder connectionAcquisitionTimeout(Duration connectionAcquisitionTimeout) {
+            this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+            return this;
+        }
+
+        public Builder connectionMaxIdleTime(Duration connectionMaxIdleTime) {
+            this.connectionMaxIdleTime = connectionMaxIdleTime;
+            return this;
+        }
+
+        public Builder connectionTimeToLive(Duration connectionTimeToLive) {
+            this.connectionTimeToLive = connectionTimeToLive;
+            return this;
+        }
+
+        public Builder tcpKeepAlive(boolean tcpKeepAlive) {
+            this.tcpKeepAlive = tcpKeepAlive;
+            return this;
+        }
+
+        public Builder apiCallTimeout(Duration apiCallTimeout) {
+            this.apiCallTimeout = apiCallTimeout;
+            return this;
+        }
+
+        public Builder metrics(String metrics) {
+            String format = metrics == null ? "" : metrics.trim().toLowerCase();
+            if (!format.isEmpty() && !format.equals(ClientMetrics.FORMAT_JSON)
+                    && !format.equals(ClientMetrics.FORMAT_PROMETHEUS)) {
+                throw new IllegalArgumentException("Unknown metrics format: " + metrics);
+            }
+            this.metrics = format;
+            return this;
+        }
+
+        public Builder metricsFile(String metricsFile) {
+            this.metricsFile = metricsFile == null ? "" : metricsFile;
+            return this;
+        }
+
+        public ClientSettings build() {
+            return new ClientSettings(this);
+        }
+    }
+}
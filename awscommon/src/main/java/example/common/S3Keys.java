@@ -0,0 +1,30 @@
+/**
+ * S3Keys class with helpers for the keys of S3 objects used in requests,
+ * shared by the examples that copy or move objects.
+ */
+
+package example.common;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+public final class S3Keys {
+
+    private S3Keys() {
+    }
+
+    /**
+     * Return the URL encoded copy source of an object.
+     * URLEncoder encodes spaces as '+', which S3 would read as a literal '+' in the key.
+     */
+    public static String copySource(String bucketName, String keyName) {
+        try {
+            return URLEncoder.encode(bucketName + "/" + keyName, StandardCharsets.UTF_8.toString())
+                    .replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw SdkClientException.create("URL could not be encoded: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * S3Objects class with the single-object requests shared by the examples that copy or move objects,
+ * and by the load test that measures them.
+ */
+
+package example.common;
+
+import java.util.ArrayList;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+public final class S3Objects {
+
+    private S3Objects() {
+    }
+
+    /**
+     * Copy an object with a single CopyObject request
+     */
+    public static CopyObjectResponse copyObject(S3Client s3client, String sourceBucketName, String sourceKey,
+                                                String destinationBucketName, String destinationKey) {
+        CopyObjectRequest copyReq = CopyObjectRequest.builder()
+                .copySource(S3Keys.copySource(sourceBucketName, sourceKey))
+                .destinationBucket(destinationBucketName)
+                .destinationKey(destinationKey)
+                .build();
+
+        return s3client.copyObject(copyReq);
+    }
+
+    /**
+     * Move an object: copy it and delete the source object with a DeleteObjects request
+     */
+    public static CopyObjectResponse moveObject(S3Client s3client, String sourceBucketName, String sourceKey,
+                                                String destinationBucketName, String destinationKey) {
+        // Copy object
+        CopyObjectResponse copyRes = copyObject(s3client, sourceBucketName, sourceKey,
+                destinationBucketName, destinationKey);
+
+        // Delete Object, the version copied if the bucket has versioning, so a newer version is kept
+        ArrayList<ObjectIdentifier> toDelete = new ArrayList<ObjectIdentifier>();
+        toDelete.add(ObjectIdentifier.builder().key(sourceKey).versionId(copyRes.copySourceVersionId()).build());
+
+        DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
+                .bucket(sourceBucketName)
+                .delete(Delete.builder().objects(toDelete).build())
+                .build();
+        s3client.deleteObjects(delReq);
+
+        return copyRes;
+    }
+}
@@ -5,29 +5,61 @@
 
 package example;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import example.common.AwsClients;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeRegionsResponse;
+import software.amazon.awssdk.services.ec2.model.DescribeSubnetsResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
-import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateChange;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
 import software.amazon.awssdk.services.ec2.model.Reservation;
+import software.amazon.awssdk.services.ec2.model.ResourceType;
+import software.amazon.awssdk.services.ec2.model.Subnet;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
 import software.amazon.awssdk.services.ec2.model.Tag;
 import software.amazon.awssdk.services.ec2.model.CreateTagsRequest;
 import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.RunInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.GroupIdentifier;
-import software.amazon.awssdk.services.ec2.model.StartInstancesRequest;
-import software.amazon.awssdk.services.ec2.model.StopInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.RebootInstancesRequest;
-import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Filter;
 
 
 public class AWSHelper {
     private static final Region REGION        = Region.of("eu-west-1");   // Region name
     private static final String AMI_ID        = "ami-07d9160fa81ccffb5";  // AMI Id
     private static final String INSTANCE_TYPE = "t2.micro";               // Instance Type
+    private static final int    MAX_RESULTS   = 1000;                     // Maximum page size of DescribeInstances
+    private static final int    MAX_BATCH     = 1000;                     // Maximum instance ids per request
+    private static final Duration WAIT_DELAY  = Duration.ofSeconds(5);    // Time between checks of the state
+    private static final int    WAIT_ATTEMPTS = 120;                      // Maximum checks of the state
+    private static final int    MAX_FILTER_VALUES = 200;                  // Maximum values of a filter
+    private static final Duration CACHE_TTL   =                           // Time the instances are cached
+            Duration.ofMillis(Long.getLong("awsexamples.instanceCacheTtl", 60000));
+
+    private static final InstanceCache CACHE = new InstanceCache(CACHE_TTL);
+    private static InstanceWaiter waiter;
 
     private AWSHelper() {
     }
@@ -36,37 +68,24 @@ public class AWSHelper {
      * Describes all EC2 instances associated with an AWS account
      */
     public static void describeInstances() {
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
-        String nextToken = null;
-
         try {
             System.out.println("Describing EC2 instances ...");
-            do {
-                DescribeInstancesRequest request = DescribeInstancesRequest.builder().maxResults(6).nextToken(nextToken).build();
-                DescribeInstancesResponse response = ec2.describeInstances(request);
-
-                for (Reservation reservation : response.reservations()) {
-                    for (Instance instance : reservation.instances()) {
-                        System.out.printf(
-                                "Found reservation with id \"%s\", " +
-                                        "AMI \"%s\", " +
-                                        "type \"%s\", " +
-                                        "state \"%s\" " +
-                                        "and monitoring state \"%s\"\n",
-                                instance.instanceId(),
-                                instance.imageId(),
-                                instance.instanceType(),
-                                instance.state().name(),
-                                instance.monitoring().state());
-                        List<Tag> tags = instance.tags();
-                        System.out.println("      Tags:   " + tags);
-                        System.out.println();
-                    }
-                }
-                nextToken = response.nextToken();
-            } while (nextToken != null);
+            for (Instance instance : findInstances(InstanceSelector.all())) {
+                System.out.printf(
+                        "Found reservation with id \"%s\", " +
+                                "AMI \"%s\", " +
+                                "type \"%s\", " +
+                                "state \"%s\" " +
+                                "and monitoring state \"%s\"\n",
+                        instance.instanceId(),
+                        instance.imageId(),
+                        instance.instanceType(),
+                        instance.state().name(),
+                        instance.monitoring().state());
+                List<Tag> tags = instance.tags();
+                System.out.println("      Tags:   " + tags);
+                System.out.println();
+            }
 
         } catch (Ec2Exception e) {
             System.err.println(e.awsErrorDetails().errorMessage());
@@ -75,39 +94,349 @@ public class AWSHelper {
     }
 
 
+    /**
+     * Describes the EC2 instances of a selector, sorted by instance id
+     */
+    public static void describeInstances(InstanceSelector selector) {
+        System.out.println("Describing EC2 instances " + selector + " ...");
+        List<Instance> instances;
+        try {
+            instances = findInstances(selector);
+        } catch (Ec2Exception e) {
+            System.err.println(e.awsErrorDetails().errorMessage());
+            return;
+        }
+
+        for (Instance instance : instances) {
+            RegionInstance regionInstance = new RegionInstance(REGION, instance);
+            System.out.printf("  %-20s %-14s %-14s %-24s %s\n",
+                    instance.instanceId(),
+                    instance.instanceTypeAsString(),
+                    instance.state().nameAsString(),
+                    instance.launchTime(),
+                    regionInstance.getName());
+        }
+        System.out.println("Found " + instances.size() + " instances");
+    }
+
+
+    /**
+     * Return the EC2 instances of a selector, sorted by instance id.
+     * They are taken from the cache when the selector, or all the instances, were described
+     * within the time to live of the cache. Otherwise they are described with the filters
+     * of the selector and added to the cache. The instances of the cache changed since then
+     * are described again, only them.
+     */
+    public static List<Instance> findInstances(InstanceSelector selector) {
+        List<String> stale = new ArrayList<>();
+        List<Instance> instances = CACHE.find(selector, stale);
+        if (instances != null && !stale.isEmpty()) {
+            refreshInstances(stale);
+            // The time to live of the selector may have expired meanwhile
+            instances = CACHE.find(selector, new ArrayList<>());
+        }
+        if (instances == null) {
+            instances = describe(selector, selector.getStates());
+            if (selector.isAll()) {
+                CACHE.putAll(instances);
+            } else {
+                CACHE.putAll(instances, selector);
+            }
+            instances.sort(Comparator.comparing(Instance::instanceId));
+        }
+        return instances;
+    }
+
+
+    /**
+     * Return an EC2 instance from the cache, or describe it if it is not cached or stale.
+     * Return null if the instance does not exist.
+     */
+    public static Instance getInstance(String instanceId) {
+        Instance instance = CACHE.get(instanceId);
+        if (instance == null) {
+            refreshInstances(Collections.singletonList(instanceId));
+            instance = CACHE.get(instanceId);
+        }
+        return instance;
+    }
+
+
+    /**
+     * Remove all the instances from the cache
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+
+    /**
+     * Describe some instances again and update them in the cache, removing the ones that no longer exist.
+     * The ids go in instance-id filters, so an id that does not exist does not fail the request.
+     */
+    private static void refreshInstances(List<String> instanceIds) {
+        Set<String> missing = new HashSet<>(instanceIds);
+        for (Instance instance : describe(InstanceSelector.ids(instanceIds), Collections.emptySet())) {
+            CACHE.put(instance);
+            missing.remove(instance.instanceId());
+        }
+        for (String instanceId : missing) {
+            CACHE.remove(instanceId);
+        }
+    }
+
+
+    /**
+     * Describe the instances of a selector in the given states, in pages of the maximum size.
+     * The instance ids go in filters of at most 200 values, with a request per filter.
+     */
+    private static List<Instance> describe(InstanceSelector selector, Collection<InstanceStateName> states) {
+        List<Instance> instances = new ArrayList<>();
+        for (InstanceSelector part : selector.split(MAX_FILTER_VALUES)) {
+            List<Filter> filters = part.toFilters(states);
+            DescribeInstancesRequest request = DescribeInstancesRequest.builder()
+                    .applyMutation(builder -> { if (!filters.isEmpty()) builder.filters(filters); })
+                    .maxResults(MAX_RESULTS)
+                    .build();
+            for (Reservation reservation : AwsClients.ec2(REGION).describeInstancesPaginator(request).reservations()) {
+                instances.addAll(reservation.instances());
+            }
+        }
+        return instances;
+    }
+
+
+    /**
+     * Describes the EC2 instances of all the regions enabled in the AWS account,
+     * sorted by region, name and instance id
+     */
+    public static void describeFleet() {
+        System.out.println("Describing EC2 instances in all regions ...");
+        long start = System.nanoTime();
+        List<RegionInstance> fleet;
+        try {
+            fleet = describeAllRegions();
+        } catch (Ec2Exception e) {
+            System.err.println(e.awsErrorDetails().errorMessage());
+            return;
+        }
+
+        Region region = null;
+        for (RegionInstance regionInstance : fleet) {
+            if (!regionInstance.getRegion().equals(region)) {
+                region = regionInstance.getRegion();
+                System.out.println("Region: " + region);
+            }
+            Instance instance = regionInstance.getInstance();
+            System.out.printf("  %-20s %-14s %-14s %-24s %s\n",
+                    instance.instanceId(),
+                    instance.instanceTypeAsString(),
+                    instance.state().nameAsString(),
+                    instance.launchTime(),
+                    regionInstance.getName());
+        }
+        System.out.printf("Found %d instances in %.2f s\n", fleet.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+
+    /**
+     * Return the EC2 instances of all the regions enabled in the AWS account, sorted by region,
+     * name and instance id.
+     * The regions are described concurrently, each one with its own async client, and the pages
+     * of a region are requested with the maximum size. A region that fails is reported and skipped.
+     */
+    public static List<RegionInstance> describeAllRegions() {
+        // Without allRegions, DescribeRegions returns only the regions enabled in the account
+        DescribeRegionsResponse regions = AwsClients.ec2(REGION).describeRegions();
+
+        List<CompletableFuture<List<RegionInstance>>> futures = new ArrayList<>();
+        for (software.amazon.awssdk.services.ec2.model.Region ec2Region : regions.regions()) {
+            Region region = Region.of(ec2Region.regionName());
+            Ec2AsyncClient ec2 = AwsClients.ec2Async(region);
+            List<RegionInstance> instances = new ArrayList<>();
+
+            // The pages of a region are delivered one after the other
+            CompletableFuture<List<RegionInstance>> future = ec2.describeInstancesPaginator(
+                    DescribeInstancesRequest.builder().maxResults(MAX_RESULTS).build())
+                    .reservations()
+                    .subscribe(reservation -> {
+                        for (Instance instance : reservation.instances()) {
+                            instances.add(new RegionInstance(region, instance));
+                        }
+                    })
+                    .thenApply(done -> instances)
+                    .exceptionally(e -> {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        System.err.println("Error describing the instances of " + region + ": " + cause.getMessage());
+                        return Collections.emptyList();
+                    });
+            futures.add(future);
+        }
+
+        List<RegionInstance> fleet = new ArrayList<>();
+        for (CompletableFuture<List<RegionInstance>> future : futures) {
+            fleet.addAll(future.join());
+        }
+        fleet.sort(Comparator.comparing((RegionInstance regionInstance) -> regionInstance.getRegion().id())
+                .thenComparing(RegionInstance::getName)
+                .thenComparing(regionInstance -> regionInstance.getInstance().instanceId()));
+        return fleet;
+    }
+
+
     /**
      * Run (Create) an EC2 instance
      */
     public static String runInstance() {
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
+        Ec2Client ec2 = AwsClients.ec2(REGION);
 
         System.out.println("Creating EC2 instance ...");
 
+        // The tag is created with the instance, without a request of its own
+        String tagName = "my-instance";
         RunInstancesRequest runRequest = RunInstancesRequest.builder()
                 .imageId(AMI_ID)
                 .instanceType(INSTANCE_TYPE)
                 .maxCount(1)
                 .minCount(1)
+                .tagSpecifications(tagSpecifications(Collections.singletonMap("Name", tagName)))
                 .build();
 
         RunInstancesResponse response = ec2.runInstances(runRequest);
         String instanceId = response.instances().get(0).instanceId();
         String reservationId = response.reservationId();
+        CACHE.put(response.instances().get(0));
 
         System.out.println("Reservation Id: " + reservationId);
         System.out.println("Instance Id:    " + instanceId);
-
-        // Tag EC2 Instance
-        String tagName = "my-instance";
-        tagInstance(ec2, instanceId, "Name", tagName);
         System.out.printf("Added Tag: Name with Value: %s\n", tagName);
 
         return instanceId;
     }
 
 
+    /**
+     * Launch a fleet of EC2 instances spread across subnets, and wait until all of them are running.
+     * Without subnets, the default subnets of the availability zones of the region are used.
+     */
+    public static List<Instance> launchFleet(int count, List<String> subnetIds, Map<String, String> tags) {
+        System.out.println("Launching " + count + " EC2 instances ...");
+        long start = System.nanoTime();
+        List<Instance> launched;
+        try {
+            launched = launchInstances(count, subnetIds.isEmpty() ? defaultSubnets() : subnetIds, tags);
+        } catch (Ec2Exception e) {
+            System.err.println(e.awsErrorDetails().errorMessage());
+            return Collections.emptyList();
+        }
+        System.out.printf("Launched %d instances in %.2f s, waiting until they are running ...\n",
+                launched.size(), (System.nanoTime() - start) / 1e9);
+
+        List<Instance> running = new ArrayList<>();
+        for (Instance instance : launched) {
+            CACHE.put(instance);
+        }
+        List<String> instanceIds = new ArrayList<>();
+        for (Instance instance : launched) {
+            instanceIds.add(instance.instanceId());
+        }
+        for (Map.Entry<String, CompletableFuture<Instance>> future : waitForState(instanceIds,
+                InstanceStateName.RUNNING).entrySet()) {
+            try {
+                Instance instance = future.getValue().join();
+                if (instance == null) {
+                    continue;
+                }
+                running.add(instance);
+                System.out.printf("  %-20s %-14s %s\n", instance.instanceId(),
+                        instance.placement().availabilityZone(), instance.subnetId());
+            } catch (CompletionException e) {
+                System.out.println("Error: " + future.getKey() + ": " + e.getCause().getMessage());
+            }
+        }
+        System.out.printf("%d instances running in %.2f s\n", running.size(), (System.nanoTime() - start) / 1e9);
+        return running;
+    }
+
+
+    /**
+     * Launch instances spread evenly across subnets, with a request per subnet sent concurrently.
+     * The tags are created with the instances and their volumes, so no instance is ever untagged.
+     * The SDK gives every request a client token, so a retried request does not launch the instances twice.
+     * A subnet that fails is reported, the instances of the other subnets are returned.
+     */
+    public static List<Instance> launchInstances(int count, List<String> subnetIds, Map<String, String> tags) {
+        Ec2AsyncClient ec2 = AwsClients.ec2Async(REGION);
+        List<TagSpecification> tagSpecifications = tagSpecifications(tags);
+
+        List<CompletableFuture<List<Instance>>> futures = new ArrayList<>();
+        int subnets = Math.max(subnetIds.size(), 1);
+        for (int i = 0; i < subnets; i++) {
+            // The first subnets get one more instance when the count is not a multiple of the subnets
+            int instances = count / subnets + (i < count % subnets ? 1 : 0);
+            if (instances == 0) {
+                continue;
+            }
+            String subnetId = subnetIds.isEmpty() ? null : subnetIds.get(i);
+            RunInstancesRequest request = RunInstancesRequest.builder()
+                    .imageId(AMI_ID)
+                    .instanceType(INSTANCE_TYPE)
+                    .minCount(instances)
+                    .maxCount(instances)
+                    .subnetId(subnetId)
+                    .tagSpecifications(tagSpecifications)
+                    .build();
+            futures.add(ec2.runInstances(request)
+                    .thenApply(RunInstancesResponse::instances)
+                    .exceptionally(e -> {
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        System.out.println("Error launching " + instances + " instances in " + subnetId + ": " +
+                                cause.getMessage());
+                        return Collections.emptyList();
+                    }));
+        }
+
+        List<Instance> launched = new ArrayList<>();
+        for (CompletableFuture<List<Instance>> future : futures) {
+            launched.addAll(future.join());
+        }
+        return launched;
+    }
+
+
+    /**
+     * Return the default subnets of the region, one per availability zone, sorted by zone
+     */
+    private static List<String> defaultSubnets() {
+        DescribeSubnetsResponse response = AwsClients.ec2(REGION).describeSubnets(request -> request
+                .filters(Filter.builder().name("default-for-az").values("true").build()));
+        List<Subnet> subnets = new ArrayList<>(response.subnets());
+        subnets.sort(Comparator.comparing(Subnet::availabilityZone));
+        List<String> subnetIds = new ArrayList<>();
+        for (Subnet subnet : subnets) {
+            subnetIds.add(subnet.subnetId());
+        }
+        return subnetIds;
+    }
+
+
+    /**
+     * Return the specifications to create some tags with the instances and their volumes
+     */
+    private static List<TagSpecification> tagSpecifications(Map<String, String> tags) {
+        List<Tag> tagList = new ArrayList<>();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            tagList.add(Tag.builder().key(tag.getKey()).value(tag.getValue()).build());
+        }
+        if (tagList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(
+                TagSpecification.builder().resourceType(ResourceType.INSTANCE).tags(tagList).build(),
+                TagSpecification.builder().resourceType(ResourceType.VOLUME).tags(tagList).build());
+    }
+
+
     /**
      * Describes an EC2 instance
      */
@@ -118,20 +447,13 @@ public class AWSHelper {
             return;
         }
 
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
-
         System.out.println("Describing EC2 instance ...");
 
-        DescribeInstancesRequest request = DescribeInstancesRequest.builder().instanceIds(instanceId).build();
-        DescribeInstancesResponse response = ec2.describeInstances(request);
-
-        List<Reservation> reservations = response.reservations();
-        Reservation reservation = reservations.get(0);
-
-        List<Instance> instances = reservation.instances();
-        Instance instance = instances.get(0);
+        Instance instance = getInstance(instanceId);
+        if (instance == null) {
+            System.out.println("Error: Instance " + instanceId + " not found.");
+            return;
+        }
 
         String imageId = instance.imageId();
         String instanceType = instance.instanceTypeAsString();
@@ -164,7 +486,7 @@ public class AWSHelper {
 
 
     /**
-     * Start an EC2 instance
+     * Start an EC2 instance and wait until it is running
      */
     public static void startInstance(String instanceId) {
 
@@ -173,20 +495,23 @@ public class AWSHelper {
             return;
         }
 
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
-        StartInstancesRequest request = StartInstancesRequest.builder()
-                .instanceIds(instanceId)
-                .build();
-
         System.out.println("Starting EC2 instance ...");
-        ec2.startInstances(request);
+        awaitInstance(startInstanceAsync(instanceId));
     }
 
 
     /**
-     * Stop an EC2 instance
+     * Start an EC2 instance, returning a future completed when it is running
+     */
+    public static CompletableFuture<Instance> startInstanceAsync(String instanceId) {
+        CACHE.invalidate(Collections.singletonList(instanceId));
+        return AwsClients.ec2Async(REGION).startInstances(request -> request.instanceIds(instanceId))
+                .thenCompose(response -> waitForState(instanceId, InstanceStateName.RUNNING));
+    }
+
+
+    /**
+     * Stop an EC2 instance and wait until it is stopped
      */
     public static void stopInstance(String instanceId) {
 
@@ -195,15 +520,18 @@ public class AWSHelper {
             return;
         }
 
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
-        StopInstancesRequest request = StopInstancesRequest.builder()
-                .instanceIds(instanceId)
-                .build();
-
         System.out.println("Stopping EC2 instance ...");
-        ec2.stopInstances(request);
+        awaitInstance(stopInstanceAsync(instanceId));
+    }
+
+
+    /**
+     * Stop an EC2 instance, returning a future completed when it is stopped
+     */
+    public static CompletableFuture<Instance> stopInstanceAsync(String instanceId) {
+        CACHE.invalidate(Collections.singletonList(instanceId));
+        return AwsClients.ec2Async(REGION).stopInstances(request -> request.instanceIds(instanceId))
+                .thenCompose(response -> waitForState(instanceId, InstanceStateName.STOPPED));
     }
 
 
@@ -217,9 +545,7 @@ public class AWSHelper {
             return;
         }
 
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
+        Ec2Client ec2 = AwsClients.ec2(REGION);
         RebootInstancesRequest request = RebootInstancesRequest.builder()
                 .instanceIds(instanceId).build();
 
@@ -229,7 +555,7 @@ public class AWSHelper {
 
 
     /**
-     * Terminate an EC2 instance
+     * Terminate an EC2 instance and wait until it is terminated
      */
     public static void terminateInstance(String instanceId) {
 
@@ -238,49 +564,295 @@ public class AWSHelper {
             return;
         }
 
-        Ec2Client ec2 = Ec2Client.builder()
-                .region(REGION)
-                .build();
-        TerminateInstancesRequest request = TerminateInstancesRequest.builder()
-                .instanceIds(instanceId).build();
-
         System.out.println("Terminating EC2 instance ...");
-        ec2.terminateInstances(request);
+        awaitInstance(terminateInstanceAsync(instanceId));
     }
 
 
     /**
-     * Wait some milliseconds
+     * Terminate an EC2 instance, returning a future completed when it is terminated
      */
-    private static void wait(int millisec) {
+    public static CompletableFuture<Instance> terminateInstanceAsync(String instanceId) {
+        CACHE.invalidate(Collections.singletonList(instanceId));
+        return AwsClients.ec2Async(REGION).terminateInstances(request -> request.instanceIds(instanceId))
+                .thenCompose(response -> waitForState(instanceId, InstanceStateName.TERMINATED));
+    }
+
+
+    /**
+     * Run an operation on all the instances of a selector and print the results
+     */
+    public static Map<String, InstanceResult> batchInstances(Operation operation, InstanceSelector selector) {
+        System.out.println(operation.getDescription() + " EC2 instances " + selector + " ...");
+        long start = System.nanoTime();
+        Map<String, InstanceResult> results;
         try {
-            Thread.sleep(millisec);
-        } catch (InterruptedException e) {
-            // swallow
+            results = changeInstances(operation, selector);
+        } catch (Ec2Exception e) {
+            System.err.println(e.awsErrorDetails().errorMessage());
+            return Collections.emptyMap();
         }
+
+        Map<String, Integer> states = new TreeMap<>();
+        int failures = 0;
+        for (InstanceResult result : results.values()) {
+            if (result.isSuccessful()) {
+                String state = result.getCurrentState() != null ? result.getCurrentState() : "done";
+                states.merge(state, 1, Integer::sum);
+            } else {
+                System.out.println("Error: " + result);
+                failures++;
+            }
+        }
+        System.out.printf("%d instances in %.2f s: %s, %d failed\n",
+                results.size(), (System.nanoTime() - start) / 1e9, states, failures);
+        return results;
     }
 
 
     /**
-     * Create a tag attached an EC2 instance
+     * Run an operation on all the instances of a selector, returning the result of every instance.
+     * The selected instances are split in chunks of the maximum size of the API, sent concurrently.
+     * When a chunk is rejected because of some of its instances, it is split in halves
+     * until the rejected instances are found, so the rest of the chunk is still done.
      */
-    private static void tagInstance(Ec2Client ec2, String instanceId, String tagName, String value) {
+    public static Map<String, InstanceResult> changeInstances(Operation operation, InstanceSelector selector) {
+        List<String> instanceIds = selectInstances(operation, selector);
+        Ec2AsyncClient ec2 = AwsClients.ec2Async(REGION);
+
+        List<CompletableFuture<List<InstanceResult>>> futures = new ArrayList<>();
+        for (int i = 0; i < instanceIds.size(); i += MAX_BATCH) {
+            futures.add(changeChunk(ec2, operation,
+                    instanceIds.subList(i, Math.min(i + MAX_BATCH, instanceIds.size()))));
+        }
 
-        Tag tag = Tag.builder()
-                .key(tagName)
-                .value(value)
-                .build();
+        Map<String, InstanceResult> results = new LinkedHashMap<>();
+        for (CompletableFuture<List<InstanceResult>> future : futures) {
+            for (InstanceResult result : future.join()) {
+                results.put(result.getInstanceId(), result);
+            }
+        }
+        CACHE.invalidate(results.keySet());
+        return results;
+    }
 
-        CreateTagsRequest tagRequest = CreateTagsRequest.builder()
-                .resources(instanceId)
-                .tags(tag)
-                .build();
 
+    /**
+     * Return the ids of the instances of a selector that the operation can be applied to.
+     * A selector with only ids is not resolved, any other one is described with filters
+     * limited to the states the operation applies to.
+     */
+    private static List<String> selectInstances(Operation operation, InstanceSelector selector) {
+        if (selector.isIdsOnly()) {
+            return new ArrayList<>(selector.getInstanceIds());
+        }
+
+        Set<InstanceStateName> states = EnumSet.copyOf(operation.getFromStates());
+        if (!selector.getStates().isEmpty()) {
+            states.retainAll(selector.getStates());
+            if (states.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        // The instances are described, not taken from the cache, as they are going to be changed
+        List<String> instanceIds = new ArrayList<>();
+        for (Instance instance : describe(selector, states)) {
+            CACHE.put(instance);
+            instanceIds.add(instance.instanceId());
+        }
+        return instanceIds;
+    }
+
+
+    /**
+     * Send the request of an operation for a chunk of instances, splitting it if it is rejected
+     */
+    private static CompletableFuture<List<InstanceResult>> changeChunk(Ec2AsyncClient ec2, Operation operation,
+                                                                       List<String> instanceIds) {
+        return sendChunk(ec2, operation, instanceIds)
+                .handle((results, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(results);
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    // A request with an invalid instance or an instance in a wrong state is rejected as a whole
+                    if (instanceIds.size() > 1 && cause instanceof Ec2Exception
+                            && ((Ec2Exception) cause).statusCode() == 400) {
+                        int half = instanceIds.size() / 2;
+                        return changeChunk(ec2, operation, instanceIds.subList(0, half))
+                                .thenCombine(changeChunk(ec2, operation, instanceIds.subList(half, instanceIds.size())),
+                                        (first, second) -> {
+                                            List<InstanceResult> all = new ArrayList<>(first);
+                                            all.addAll(second);
+                                            return all;
+                                        });
+                    }
+                    String error = cause instanceof Ec2Exception && ((Ec2Exception) cause).awsErrorDetails() != null
+                            ? ((Ec2Exception) cause).awsErrorDetails().errorMessage()
+                            : cause.getMessage();
+                    List<InstanceResult> failures = new ArrayList<>();
+                    for (String instanceId : instanceIds) {
+                        failures.add(InstanceResult.failure(instanceId, error));
+                    }
+                    return CompletableFuture.completedFuture(failures);
+                })
+                .thenCompose(future -> future);
+    }
+
+
+    private static CompletableFuture<List<InstanceResult>> sendChunk(Ec2AsyncClient ec2, Operation operation,
+                                                                     List<String> instanceIds) {
+        switch (operation) {
+            case START:
+                return ec2.startInstances(request -> request.instanceIds(instanceIds))
+                        .thenApply(response -> toResults(response.startingInstances()));
+            case STOP:
+                return ec2.stopInstances(request -> request.instanceIds(instanceIds))
+                        .thenApply(response -> toResults(response.stoppingInstances()));
+            case REBOOT:
+                return ec2.rebootInstances(request -> request.instanceIds(instanceIds))
+                        .thenApply(response -> {
+                            List<InstanceResult> results = new ArrayList<>();
+                            for (String instanceId : instanceIds) {
+                                results.add(InstanceResult.success(instanceId, null, null));
+                            }
+                            return results;
+                        });
+            default:
+                return ec2.terminateInstances(request -> request.instanceIds(instanceIds))
+                        .thenApply(response -> toResults(response.terminatingInstances()));
+        }
+    }
+
+
+    private static List<InstanceResult> toResults(List<InstanceStateChange> changes) {
+        List<InstanceResult> results = new ArrayList<>();
+        for (InstanceStateChange change : changes) {
+            results.add(InstanceResult.success(change.instanceId(),
+                    change.previousState().nameAsString(), change.currentState().nameAsString()));
+        }
+        return results;
+    }
+
+
+    /**
+     * Return a future completed when an EC2 instance reaches a state: running, stopped or terminated.
+     * The instances waited on are checked together by one InstanceWaiter, with a DescribeInstances
+     * per 1000 instances every round, so many instances can be waited on at the same time without
+     * a thread or a request per instance.
+     */
+    public static CompletableFuture<Instance> waitForState(String instanceId, InstanceStateName state) {
+        return waiter().waitFor(instanceId, state).thenApply(instance -> {
+            CACHE.put(instance);
+            return instance;
+        });
+    }
+
+
+    /**
+     * Return a future for every instance, completed when it reaches a state
+     */
+    public static Map<String, CompletableFuture<Instance>> waitForState(Collection<String> instanceIds,
+                                                                        InstanceStateName state) {
+        Map<String, CompletableFuture<Instance>> futures = new LinkedHashMap<>();
+        for (String instanceId : instanceIds) {
+            futures.put(instanceId, waitForState(instanceId, state));
+        }
+        return futures;
+    }
+
+
+    /**
+     * Restart the instances of a selector, a batch after another: the instances of a batch are stopped,
+     * and started again when all of them are stopped. The next batch starts when all the instances
+     * of the batch are running.
+     */
+    public static void rollingRestart(InstanceSelector selector, int batchSize) {
+        List<String> instanceIds;
         try {
-            ec2.createTags(tagRequest);
+            instanceIds = selectInstances(Operation.STOP, selector);
         } catch (Ec2Exception e) {
             System.err.println(e.awsErrorDetails().errorMessage());
+            return;
+        }
+        System.out.println("Restarting " + instanceIds.size() + " EC2 instances " + selector + " ...");
+
+        for (int i = 0; i < instanceIds.size(); i += batchSize) {
+            List<String> batch = instanceIds.subList(i, Math.min(i + batchSize, instanceIds.size()));
+            System.out.printf("Batch %d: %d instances\n", i / batchSize + 1, batch.size());
+
+            List<String> stopped = awaitStates(changeInstances(Operation.STOP, InstanceSelector.ids(batch)),
+                    InstanceStateName.STOPPED);
+            List<String> running = awaitStates(changeInstances(Operation.START, InstanceSelector.ids(stopped)),
+                    InstanceStateName.RUNNING);
+            System.out.printf("Batch %d: %d instances restarted\n", i / batchSize + 1, running.size());
+            if (running.size() < batch.size()) {
+                System.out.println("Error: some instances were not restarted, stopping the rolling restart");
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Wait until the instances changed by an operation reach a state, printing the failures.
+     * Return the instances that reached it.
+     */
+    private static List<String> awaitStates(Map<String, InstanceResult> results, InstanceStateName state) {
+        List<String> instanceIds = new ArrayList<>();
+        for (InstanceResult result : results.values()) {
+            if (result.isSuccessful()) {
+                instanceIds.add(result.getInstanceId());
+            } else {
+                System.out.println("Error: " + result);
+            }
+        }
+
+        List<String> done = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Instance>> future : waitForState(instanceIds, state).entrySet()) {
+            try {
+                future.getValue().join();
+                done.add(future.getKey());
+            } catch (CompletionException e) {
+                System.out.println("Error: " + future.getKey() + ": " + e.getCause().getMessage());
+            }
+        }
+        return done;
+    }
+
+
+    /**
+     * Wait until the future of an instance is completed and print the state of the instance
+     */
+    private static void awaitInstance(CompletableFuture<Instance> future) {
+        try {
+            Instance instance = future.join();
+            if (instance != null) {
+                System.out.println("EC2 instance " + instance.instanceId() + " is " + instance.state().nameAsString());
+            }
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            System.err.println(cause instanceof Ec2Exception && ((Ec2Exception) cause).awsErrorDetails() != null
+                    ? ((Ec2Exception) cause).awsErrorDetails().errorMessage()
+                    : cause.getMessage());
+        }
+    }
+
+
+    /**
+     * Return the waiter of the EC2 instances, created the first time
+     */
+    private static synchronized InstanceWaiter waiter() {
+        if (waiter == null) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ec2-waiter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            waiter = new InstanceWaiter(AwsClients.ec2Async(REGION), scheduler, WAIT_DELAY, WAIT_ATTEMPTS);
         }
+        return waiter;
     }
 
 
@@ -301,4 +873,66 @@ public class AWSHelper {
             System.err.println(e.awsErrorDetails().errorMessage());
         }
     }
+
+
+    /**
+     * EC2 instance with the region it belongs to
+     */
+    public static class RegionInstance {
+        private final Region region;
+        private final Instance instance;
+
+        public RegionInstance(Region region, Instance instance) {
+            this.region = region;
+            this.instance = instance;
+        }
+
+        public Region getRegion() {
+            return region;
+        }
+
+        public Instance getInstance() {
+            return instance;
+        }
+
+        /**
+         * Return the value of the Name tag, empty if the instance has no name
+         */
+        public String getName() {
+            for (Tag tag : instance.tags()) {
+                if (tag.key().equals("Name")) {
+                    return tag.value();
+                }
+            }
+            return "";
+        }
+    }
+
+
+    /**
+     * Operation on EC2 instances, with the states of the instances it applies to
+     */
+    public enum Operation {
+        START("Starting", InstanceStateName.STOPPED),
+        STOP("Stopping", InstanceStateName.PENDING, InstanceStateName.RUNNING),
+        REBOOT("Rebooting", InstanceStateName.RUNNING),
+        TERMINATE("Terminating", InstanceStateName.PENDING, InstanceStateName.RUNNING,
+                InstanceStateName.STOPPING, InstanceStateName.STOPPED);
+
+        private final String description;
+        private final Set<InstanceStateName> fromStates;
+
+        Operation(String description, InstanceStateName... fromStates) {
+            this.description = description;
+            this.fromStates = EnumSet.copyOf(Arrays.asList(fromStates));
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public Set<InstanceStateName> getFromStates() {
+            return Collections.unmodifiableSet(fromStates);
+        }
+    }
 }
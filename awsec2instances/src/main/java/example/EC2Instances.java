@@ -6,6 +6,11 @@
 package example;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class EC2Instances {
@@ -23,6 +28,12 @@ public class EC2Instances {
         System.out.println("5 = Stop instance");
         System.out.println("6 = Reboot instance");
         System.out.println("7 = Terminate instance");
+        System.out.println("8 = Describe all instances in all regions");
+        System.out.println("9 = Start, stop, reboot or terminate many instances");
+        System.out.println("10 = Rolling restart of many instances");
+        System.out.println("11 = Find instances by id, tag, state or type");
+        System.out.println("12 = Clear the cache of instances");
+        System.out.println("13 = Launch a fleet of instances");
         System.out.println("Enter an option?");
     }
 
@@ -42,6 +53,91 @@ public class EC2Instances {
         return option;
     }
 
+    /**
+     * Read from keyboard an operation and the instances it applies to, and run it
+     */
+    private static void batchInstances(Scanner sc) {
+        System.out.println("Enter the operation (start, stop, reboot, terminate)?");
+        AWSHelper.Operation operation;
+        try {
+            operation = AWSHelper.Operation.valueOf(sc.nextLine().trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: Enter a valid operation!!");
+            return;
+        }
+
+        System.out.println("Enter the instances (<ID>[,<ID>...], tag:<KEY>=<VALUE>, state:<STATE>, type:<TYPE>)?");
+        InstanceSelector selector;
+        try {
+            selector = InstanceSelector.parse(sc.nextLine());
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        AWSHelper.batchInstances(operation, selector);
+    }
+
+    /**
+     * Read from keyboard the number of instances, the subnets and the name of a fleet, and launch it
+     */
+    private static void launchFleet(Scanner sc) {
+        System.out.println("Enter the number of instances?");
+        String line = sc.nextLine().trim();
+        if (!line.matches("[1-9][0-9]*")) {
+            System.out.println("ERROR: Enter a valid number!!");
+            return;
+        }
+        int count = Integer.parseInt(line);
+
+        System.out.println("Enter the subnets (<SUBNET_ID>[,<SUBNET_ID>...], empty for the default subnets)?");
+        line = sc.nextLine().trim();
+        List<String> subnetIds = line.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(line.split(","));
+
+        System.out.println("Enter the name of the instances?");
+        line = sc.nextLine().trim();
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("Name", line.isEmpty() ? "my-fleet" : line);
+
+        AWSHelper.launchFleet(count, subnetIds, tags);
+    }
+
+    /**
+     * Read from keyboard the instances to find, and describe them
+     */
+    private static void findInstances(Scanner sc) {
+        System.out.println("Enter the instances (<ID>[,<ID>...], tag:<KEY>=<VALUE>, state:<STATE>, type:<TYPE>)?");
+        try {
+            AWSHelper.describeInstances(InstanceSelector.parse(sc.nextLine()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read from keyboard the instances to restart and the size of the batches, and restart them
+     */
+    private static void rollingRestart(Scanner sc) {
+        System.out.println("Enter the instances (<ID>[,<ID>...], tag:<KEY>=<VALUE>, state:<STATE>, type:<TYPE>)?");
+        InstanceSelector selector;
+        try {
+            selector = InstanceSelector.parse(sc.nextLine());
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        System.out.println("Enter the number of instances restarted at the same time?");
+        String line = sc.nextLine().trim();
+        if (!line.matches("[1-9][0-9]*")) {
+            System.out.println("ERROR: Enter a valid number!!");
+            return;
+        }
+        int batchSize = Integer.parseInt(line);
+
+        AWSHelper.rollingRestart(selector, batchSize);
+    }
+
     public static void main(String[] args) throws IOException {
         String instanceId = null;
         Scanner sc = new Scanner(System.in);
@@ -78,6 +174,25 @@ public class EC2Instances {
                     AWSHelper.terminateInstance(instanceId);
                     instanceId = null;
                     break;
+                case 8:  // Describe all instances in all regions
+                    AWSHelper.describeFleet();
+                    break;
+                case 9:  // Start, stop, reboot or terminate many instances
+                    batchInstances(sc);
+                    break;
+                case 10:  // Rolling restart of many instances
+                    rollingRestart(sc);
+                    break;
+                case 11:  // Find instances by id, tag, state or type
+                    findInstances(sc);
+                    break;
+                case 12:  // Clear the cache of instances
+                    AWSHelper.clearCache();
+                    System.out.println("Cache cleared");
+                    break;
+                case 13:  // Launch a fleet of instances
+                    launchFleet(sc);
+                    break;
                 default:
                     System.out.println("ERROR: Enter a valid option!!");
             }
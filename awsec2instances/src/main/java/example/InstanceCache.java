@@ -0,0 +1,219 @@
+/**
+ * InstanceCache class with a local copy of the EC2 instances, so repeated lookups do not call the EC2 API.
+ * An instance is fresh for a time to live after it was described. The cache keeps indexes by tag,
+ * state and instance type, used to answer a selector when the instances it matches were described
+ * within the time to live: all the instances of the region, or the same selector.
+ * An instance changed by an operation is marked stale, so the next lookup describes it again.
+ */
+
+package example;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+public class InstanceCache {
+    private static final long STALE = Long.MIN_VALUE;
+
+    private final long ttlNanos;
+    private final Map<String, Entry> instances = new TreeMap<>();
+    private final Map<String, Map<String, Set<String>>> tagIndex = new HashMap<>();
+    private final Map<String, Set<String>> stateIndex = new HashMap<>();
+    private final Map<String, Set<String>> typeIndex = new HashMap<>();
+    private final Map<InstanceSelector, Long> selectors = new HashMap<>();   // Selectors described, with the time
+    private long allLoadedAt = STALE;                                         // Time all the instances were described
+
+    public InstanceCache(Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Return an instance if it is in the cache and fresh, null otherwise
+     */
+    public synchronized Instance get(String instanceId) {
+        Entry entry = instances.get(instanceId);
+        return entry != null && isFresh(entry.loadedAt) ? entry.instance : null;
+    }
+
+    /**
+     * Return the instances of a selector if they were described within the time to live, null otherwise.
+     * The instances that are stale are added to the list given, to be described again.
+     */
+    public synchronized List<Instance> find(InstanceSelector selector, List<String> staleInstanceIds) {
+        Long loadedAt = selectors.get(selector);
+        if (!isFresh(allLoadedAt) && (loadedAt == null || !isFresh(loadedAt))) {
+            return null;
+        }
+
+        Set<String> candidates = null;
+        if (!selector.getInstanceIds().isEmpty()) {
+            candidates = retain(null, selector.getInstanceIds());
+        }
+        for (Map.Entry<String, String> tag : selector.getTags().entrySet()) {
+            Set<String> tagged = tagIndex.getOrDefault(tag.getKey(), Collections.emptyMap()).get(tag.getValue());
+            candidates = retain(candidates, tagged != null ? tagged : Collections.<String>emptySet());
+        }
+        if (!selector.getStates().isEmpty()) {
+            Set<String> inStates = new HashSet<>();
+            for (InstanceStateName state : selector.getStates()) {
+                inStates.addAll(stateIndex.getOrDefault(state.toString(), Collections.emptySet()));
+            }
+            candidates = retain(candidates, inStates);
+        }
+        if (!selector.getInstanceTypes().isEmpty()) {
+            Set<String> ofTypes = new HashSet<>();
+            for (String instanceType : selector.getInstanceTypes()) {
+                ofTypes.addAll(typeIndex.getOrDefault(instanceType, Collections.emptySet()));
+            }
+            candidates = retain(candidates, ofTypes);
+        }
+        if (candidates == null) {
+            candidates = instances.keySet();
+        }
+
+        List<Instance> found = new ArrayList<>();
+        for (String instanceId : new TreeSet<>(candidates)) {
+            Entry entry = instances.get(instanceId);
+            if (entry == null) {
+                continue;
+            }
+            if (isFresh(entry.loadedAt)) {
+                found.add(entry.instance);
+            } else {
+                staleInstanceIds.add(instanceId);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Add or replace an instance
+     */
+    public synchronized void put(Instance instance) {
+        remove(instance.instanceId());
+        String instanceId = instance.instanceId();
+        instances.put(instanceId, new Entry(instance, System.nanoTime()));
+        for (Tag tag : instance.tags()) {
+            tagIndex.computeIfAbsent(tag.key(), key -> new HashMap<>())
+                    .computeIfAbsent(tag.value(), value -> new HashSet<>())
+                    .add(instanceId);
+        }
+        stateIndex.computeIfAbsent(instance.state().nameAsString(), state -> new HashSet<>()).add(instanceId);
+        typeIndex.computeIfAbsent(instance.instanceTypeAsString(), type -> new HashSet<>()).add(instanceId);
+    }
+
+    /**
+     * Add the instances described for a selector
+     */
+    public synchronized void putAll(Collection<Instance> described, InstanceSelector selector) {
+        for (Instance instance : described) {
+            put(instance);
+        }
+        // A copy, as the selector of the caller can still be changed
+        selectors.put(selector.copy(), System.nanoTime());
+    }
+
+    /**
+     * Replace all the instances with the ones described for the whole region
+     */
+    public synchronized void putAll(Collection<Instance> described) {
+        clear();
+        for (Instance instance : described) {
+            put(instance);
+        }
+        allLoadedAt = System.nanoTime();
+    }
+
+    /**
+     * Mark some instances as stale, because an operation is changing them
+     */
+    public synchronized void invalidate(Collection<String> instanceIds) {
+        for (String instanceId : instanceIds) {
+            Entry entry = instances.get(instanceId);
+            if (entry != null) {
+                entry.loadedAt = STALE;
+            }
+        }
+    }
+
+    /**
+     * Remove an instance, for example because it no longer exists
+     */
+    public synchronized void remove(String instanceId) {
+        Entry entry = instances.remove(instanceId);
+        if (entry == null) {
+            return;
+        }
+        for (Tag tag : entry.instance.tags()) {
+            Map<String, Set<String>> values = tagIndex.get(tag.key());
+            if (values != null && values.containsKey(tag.value())) {
+                removeFromIndex(values, tag.value(), instanceId);
+                if (values.isEmpty()) {
+                    tagIndex.remove(tag.key());
+                }
+            }
+        }
+        removeFromIndex(stateIndex, entry.instance.state().nameAsString(), instanceId);
+        removeFromIndex(typeIndex, entry.instance.instanceTypeAsString(), instanceId);
+    }
+
+    public synchronized void clear() {
+        instances.clear();
+        tagIndex.clear();
+        stateIndex.clear();
+        typeIndex.clear();
+        selectors.clear();
+        allLoadedAt = STALE;
+    }
+
+    public synchronized int size() {
+        return instances.size();
+    }
+
+    private boolean isFresh(long loadedAt) {
+        return loadedAt != STALE && System.nanoTime() - loadedAt < ttlNanos;
+    }
+
+    private static Set<String> retain(Set<String> candidates, Set<String> matching) {
+        if (candidates == null) {
+            return new HashSet<>(matching);
+        }
+        candidates.retainAll(matching);
+        return candidates;
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, String key, String instanceId) {
+        Set<String> instanceIds = index.get(key);
+        if (instanceIds != null) {
+            instanceIds.remove(instanceId);
+            if (instanceIds.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+
+    /**
+     * Instance in the cache with the time it was described
+     */
+    private static class Entry {
+        final Instance instance;
+        long loadedAt;
+
+        Entry(Instance instance, long loadedAt) {
+            this.instance = instance;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
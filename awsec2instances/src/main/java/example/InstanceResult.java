@@ -0,0 +1,57 @@
+/**
+ * InstanceResult class with the result of a batch operation for an instance:
+ * its state before and after the operation, or the error if it failed.
+ * A reboot does not return the states of the instances.
+ */
+
+package example;
+
+public class InstanceResult {
+    private final String instanceId;
+    private final String previousState;
+    private final String currentState;
+    private final String error;
+
+    private InstanceResult(String instanceId, String previousState, String currentState, String error) {
+        this.instanceId = instanceId;
+        this.previousState = previousState;
+        this.currentState = currentState;
+        this.error = error;
+    }
+
+    public static InstanceResult success(String instanceId, String previousState, String currentState) {
+        return new InstanceResult(instanceId, previousState, currentState, null);
+    }
+
+    public static InstanceResult failure(String instanceId, String error) {
+        return new InstanceResult(instanceId, null, null, error);
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public String getPreviousState() {
+        return previousState;
+    }
+
+    public String getCurrentState() {
+        return currentState;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        if (!isSuccessful()) {
+            return instanceId + ": " + error;
+        }
+        return instanceId + (currentState != null ? ": " + previousState + " -> " + currentState : ": done");
+    }
+}
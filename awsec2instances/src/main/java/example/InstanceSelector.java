@@ -0,0 +1,244 @@
+/**
+ * InstanceSelector class with the instances a batch operation applies to:
+ * a list of instance ids, tags, states and instance types, all of them must match.
+ * A selector with only instance ids is used as it is, any other one is resolved
+ * with DescribeInstances filters.
+ */
+
+package example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+public class InstanceSelector {
+    private final Set<String> instanceIds = new LinkedHashSet<>();
+    private final Map<String, String> tags = new LinkedHashMap<>();
+    private final Set<InstanceStateName> states = new LinkedHashSet<>();
+    private final Set<String> instanceTypes = new LinkedHashSet<>();
+
+    private InstanceSelector() {
+    }
+
+    /**
+     * Select all the instances
+     */
+    public static InstanceSelector all() {
+        return new InstanceSelector();
+    }
+
+    /**
+     * Select the instances with these ids
+     */
+    public static InstanceSelector ids(Collection<String> instanceIds) {
+        return new InstanceSelector().andIds(instanceIds);
+    }
+
+    public static InstanceSelector ids(String... instanceIds) {
+        return ids(Arrays.asList(instanceIds));
+    }
+
+    /**
+     * Select the instances with a tag
+     */
+    public static InstanceSelector tag(String key, String value) {
+        return new InstanceSelector().andTag(key, value);
+    }
+
+    /**
+     * Select the instances in one of these states
+     */
+    public static InstanceSelector state(InstanceStateName... states) {
+        return new InstanceSelector().andState(states);
+    }
+
+    /**
+     * Select the instances of one of these types
+     */
+    public static InstanceSelector type(String... instanceTypes) {
+        return new InstanceSelector().andType(instanceTypes);
+    }
+
+    /**
+     * Parse a selector from a text: "tag:<KEY>=<VALUE>", "state:<STATE>[,<STATE>...]",
+     * "type:<TYPE>[,<TYPE>...]" or "<INSTANCE_ID>[,<INSTANCE_ID>...]", several of them separated by spaces
+     */
+    public static InstanceSelector parse(String text) {
+        InstanceSelector selector = new InstanceSelector();
+        for (String part : text.trim().split("\\s+")) {
+            if (part.startsWith("tag:") && part.indexOf('=') > 4) {
+                selector.andTag(part.substring(4, part.indexOf('=')), part.substring(part.indexOf('=') + 1));
+            } else if (part.startsWith("state:")) {
+                for (String state : part.substring(6).split(",")) {
+                    InstanceStateName stateName = InstanceStateName.fromValue(state);
+                    if (stateName == InstanceStateName.UNKNOWN_TO_SDK_VERSION) {
+                        throw new IllegalArgumentException("Invalid state: " + state);
+                    }
+                    selector.andState(stateName);
+                }
+            } else if (part.startsWith("type:") && part.length() > 5) {
+                selector.andType(part.substring(5).split(","));
+            } else if (part.matches("i-[0-9a-f]+(,i-[0-9a-f]+)*")) {
+                selector.andIds(Arrays.asList(part.split(",")));
+            } else {
+                throw new IllegalArgumentException("Invalid selector: " + part);
+            }
+        }
+        return selector;
+    }
+
+    public InstanceSelector andIds(Collection<String> ids) {
+        instanceIds.addAll(ids);
+        return this;
+    }
+
+    public InstanceSelector andTag(String key, String value) {
+        tags.put(key, value);
+        return this;
+    }
+
+    public InstanceSelector andState(InstanceStateName... stateNames) {
+        states.addAll(Arrays.asList(stateNames));
+        return this;
+    }
+
+    public InstanceSelector andType(String... types) {
+        instanceTypes.addAll(Arrays.asList(types));
+        return this;
+    }
+
+    public Set<String> getInstanceIds() {
+        return Collections.unmodifiableSet(instanceIds);
+    }
+
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(tags);
+    }
+
+    public Set<InstanceStateName> getStates() {
+        return Collections.unmodifiableSet(states);
+    }
+
+    public Set<String> getInstanceTypes() {
+        return Collections.unmodifiableSet(instanceTypes);
+    }
+
+    /**
+     * Return true if the selector selects all the instances
+     */
+    public boolean isAll() {
+        return instanceIds.isEmpty() && tags.isEmpty() && states.isEmpty() && instanceTypes.isEmpty();
+    }
+
+    /**
+     * Return true if the selector has only instance ids, so it does not need to be resolved
+     */
+    public boolean isIdsOnly() {
+        return !instanceIds.isEmpty() && tags.isEmpty() && states.isEmpty() && instanceTypes.isEmpty();
+    }
+
+    /**
+     * Return the DescribeInstances filters of the selector, with the states given instead of
+     * the ones of the selector
+     */
+    public List<Filter> toFilters(Collection<InstanceStateName> stateNames) {
+        List<Filter> filters = new ArrayList<>();
+        if (!instanceIds.isEmpty()) {
+            filters.add(Filter.builder().name("instance-id").values(instanceIds).build());
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            filters.add(Filter.builder().name("tag:" + tag.getKey()).values(tag.getValue()).build());
+        }
+        if (!instanceTypes.isEmpty()) {
+            filters.add(Filter.builder().name("instance-type").values(instanceTypes).build());
+        }
+        if (!stateNames.isEmpty()) {
+            List<String> values = new ArrayList<>();
+            for (InstanceStateName stateName : stateNames) {
+                values.add(stateName.toString());
+            }
+            filters.add(Filter.builder().name("instance-state-name").values(values).build());
+        }
+        return filters;
+    }
+
+    /**
+     * Return copies of the selector with at most maxInstanceIds instance ids each,
+     * as a filter accepts a limited number of values
+     */
+    public List<InstanceSelector> split(int maxInstanceIds) {
+        if (instanceIds.size() <= maxInstanceIds) {
+            return Collections.singletonList(copy());
+        }
+        List<String> ids = new ArrayList<>(instanceIds);
+        List<InstanceSelector> selectors = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += maxInstanceIds) {
+            InstanceSelector selector = copy();
+            selector.instanceIds.clear();
+            selector.instanceIds.addAll(ids.subList(i, Math.min(i + maxInstanceIds, ids.size())));
+            selectors.add(selector);
+        }
+        return selectors;
+    }
+
+    /**
+     * Return a copy of the selector, which is not changed when this one is
+     */
+    public InstanceSelector copy() {
+        InstanceSelector selector = new InstanceSelector();
+        selector.instanceIds.addAll(instanceIds);
+        selector.tags.putAll(tags);
+        selector.states.addAll(states);
+        selector.instanceTypes.addAll(instanceTypes);
+        return selector;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof InstanceSelector)) {
+            return false;
+        }
+        InstanceSelector other = (InstanceSelector) o;
+        return instanceIds.equals(other.instanceIds) && tags.equals(other.tags)
+                && states.equals(other.states) && instanceTypes.equals(other.instanceTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(instanceIds, tags, states, instanceTypes);
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (!instanceIds.isEmpty()) {
+            parts.add(String.join(",", instanceIds));
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            parts.add("tag:" + tag.getKey() + "=" + tag.getValue());
+        }
+        if (!states.isEmpty()) {
+            List<String> values = new ArrayList<>();
+            for (InstanceStateName stateName : states) {
+                values.add(stateName.toString());
+            }
+            parts.add("state:" + String.join(",", values));
+        }
+        if (!instanceTypes.isEmpty()) {
+            parts.add("type:" + String.join(",", instanceTypes));
+        }
+        return String.join(" ", parts);
+    }
+}
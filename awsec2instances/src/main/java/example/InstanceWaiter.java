@@ -0,0 +1,222 @@
+/**
+ * InstanceWaiter class with futures completed when EC2 instances reach a state: running, stopped or terminated.
+ * All the instances waited on are checked together: every round sends one DescribeInstances
+ * per 1000 instances, and the future of every instance is completed from the shared responses,
+ * so waiting on hundreds of instances takes a few requests per round instead of one per instance.
+ * A future fails when its instance reaches a state it cannot leave for the target state,
+ * or when the target state is not reached after the maximum number of rounds.
+ */
+
+package example;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+public class InstanceWaiter {
+    private static final int     MAX_BATCH    = 1000;   // Maximum instance ids per DescribeInstances
+    private static final String  NOT_FOUND    = "InvalidInstanceID.NotFound";
+    private static final Pattern INSTANCE_ID  = Pattern.compile("i-[0-9a-f]+");
+
+    // States an instance cannot leave for the target state, as in the EC2 waiters
+    private static final Map<InstanceStateName, Set<InstanceStateName>> FAILURE_STATES =
+            new EnumMap<>(InstanceStateName.class);
+    static {
+        FAILURE_STATES.put(InstanceStateName.RUNNING, EnumSet.of(
+                InstanceStateName.SHUTTING_DOWN, InstanceStateName.TERMINATED, InstanceStateName.STOPPING));
+        FAILURE_STATES.put(InstanceStateName.STOPPED, EnumSet.of(
+                InstanceStateName.PENDING, InstanceStateName.TERMINATED));
+        FAILURE_STATES.put(InstanceStateName.TERMINATED, EnumSet.of(
+                InstanceStateName.PENDING, InstanceStateName.STOPPING));
+    }
+
+    private final Ec2AsyncClient ec2;
+    private final ScheduledExecutorService scheduler;
+    private final Duration delay;
+    private final int maxAttempts;
+    private final Map<String, List<Wait>> waits = new HashMap<>();
+    private boolean polling;
+
+    /**
+     * Create a waiter checking the instances every delay, at most maxAttempts times each
+     */
+    public InstanceWaiter(Ec2AsyncClient ec2, ScheduledExecutorService scheduler, Duration delay, int maxAttempts) {
+        this.ec2 = ec2;
+        this.scheduler = scheduler;
+        this.delay = delay;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Return a future completed with the instance when it reaches a state
+     */
+    public CompletableFuture<Instance> waitFor(String instanceId, InstanceStateName state) {
+        if (!FAILURE_STATES.containsKey(state)) {
+            throw new IllegalArgumentException("No waiter for the state " + state);
+        }
+        Wait wait = new Wait(state);
+        synchronized (this) {
+            waits.computeIfAbsent(instanceId, id -> new ArrayList<>()).add(wait);
+            if (!polling) {
+                polling = true;
+                scheduler.schedule(this::poll, delay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+        return wait.future;
+    }
+
+    /**
+     * Check all the instances waited on, and schedule the next round while there are some left
+     */
+    private void poll() {
+        List<String> instanceIds;
+        synchronized (this) {
+            instanceIds = new ArrayList<>(waits.keySet());
+        }
+
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for (int i = 0; i < instanceIds.size(); i += MAX_BATCH) {
+            requests.add(describe(instanceIds.subList(i, Math.min(i + MAX_BATCH, instanceIds.size()))));
+        }
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).whenComplete((done, e) -> {
+            synchronized (this) {
+                if (waits.isEmpty()) {
+                    polling = false;
+                } else {
+                    scheduler.schedule(this::poll, delay.toMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Describe a batch of instances and update their waits.
+     * The instances that do not exist yet (just launched) fail the whole request, so they are
+     * taken out of the batch and the rest is described again.
+     */
+    private CompletableFuture<Void> describe(List<String> instanceIds) {
+        return ec2.describeInstances(request -> request.instanceIds(instanceIds))
+                .handle((response, e) -> {
+                    if (e == null) {
+                        update(instanceIds, response, null);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    Set<String> notFound = notFound(cause, instanceIds);
+                    if (notFound.isEmpty() || notFound.size() == instanceIds.size()) {
+                        update(instanceIds, null, cause);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    update(new ArrayList<>(notFound), null, cause);
+                    List<String> found = new ArrayList<>(instanceIds);
+                    found.removeAll(notFound);
+                    return describe(found);
+                })
+                .thenCompose(future -> future);
+    }
+
+    /**
+     * Complete the waits of the instances that reached their state or cannot reach it,
+     * and of the ones that used all their attempts
+     */
+    private void update(List<String> instanceIds, DescribeInstancesResponse response, Throwable error) {
+        Map<String, Instance> described = new HashMap<>();
+        if (response != null) {
+            for (Reservation reservation : response.reservations()) {
+                for (Instance instance : reservation.instances()) {
+                    described.put(instance.instanceId(), instance);
+                }
+            }
+        }
+
+        // The futures are completed out of the lock, as their callbacks may wait for other instances
+        List<Runnable> completions = new ArrayList<>();
+        synchronized (this) {
+            for (String instanceId : instanceIds) {
+                List<Wait> instanceWaits = waits.get(instanceId);
+                if (instanceWaits == null) {
+                    continue;
+                }
+                Instance instance = described.get(instanceId);
+                InstanceStateName state = instance != null ? instance.state().name() : null;
+                for (Iterator<Wait> iterator = instanceWaits.iterator(); iterator.hasNext(); ) {
+                    Wait wait = iterator.next();
+                    wait.attempts++;
+                    if (state == wait.state) {
+                        completions.add(() -> wait.future.complete(instance));
+                    } else if (state != null && FAILURE_STATES.get(wait.state).contains(state)) {
+                        completions.add(() -> wait.future.completeExceptionally(new IllegalStateException(
+                                "Instance " + instanceId + " is " + state + ", it will not be " + wait.state)));
+                    } else if (wait.attempts >= maxAttempts) {
+                        String reason = error != null ? ": " + error.getMessage() : "";
+                        completions.add(() -> wait.future.completeExceptionally(new IllegalStateException(
+                                "Instance " + instanceId + " is not " + wait.state + " after " + maxAttempts +
+                                        " checks" + reason)));
+                    } else {
+                        continue;
+                    }
+                    iterator.remove();
+                }
+                if (instanceWaits.isEmpty()) {
+                    waits.remove(instanceId);
+                }
+            }
+        }
+        for (Runnable completion : completions) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Return the instances of a batch named in a not found error
+     */
+    private static Set<String> notFound(Throwable error, List<String> instanceIds) {
+        if (!(error instanceof Ec2Exception) || ((Ec2Exception) error).awsErrorDetails() == null
+                || !NOT_FOUND.equals(((Ec2Exception) error).awsErrorDetails().errorCode())) {
+            return Collections.emptySet();
+        }
+        Set<String> batch = new HashSet<>(instanceIds);
+        Set<String> notFound = new HashSet<>();
+        Matcher matcher = INSTANCE_ID.matcher(((Ec2Exception) error).awsErrorDetails().errorMessage());
+        while (matcher.find()) {
+            if (batch.contains(matcher.group())) {
+                notFound.add(matcher.group());
+            }
+        }
+        return notFound;
+    }
+
+
+    /**
+     * Wait of an instance for a state
+     */
+    private static class Wait {
+        final InstanceStateName state;
+        final CompletableFuture<Instance> future = new CompletableFuture<>();
+        int attempts;
+
+        Wait(InstanceStateName state) {
+            this.state = state;
+        }
+    }
+}
@@ -13,6 +13,7 @@ package example;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import example.common.AwsClients;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.core.exception.SdkException;
@@ -46,7 +47,7 @@ public class LambdaCreate {
         System.out.println("Lambda function role:    " + functionRole);
         System.out.println("Lambda function handler: " + functionHandler);
 
-        LambdaClient awsLambda = LambdaClient.builder().region(REGION).build();
+        LambdaClient awsLambda = AwsClients.lambda(REGION);
 
         try {
             InputStream is = new FileInputStream(functionFile);
@@ -93,6 +94,5 @@ public class LambdaCreate {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        awsLambda.close();
     }
 }
@@ -7,6 +7,7 @@
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.lambda.LambdaClient;
@@ -29,7 +30,7 @@ public class LambdaDelete {
 
         System.out.println("Lambda function name: " + functionName);
 
-        LambdaClient awsLambda = LambdaClient.builder().region(REGION).build();
+        LambdaClient awsLambda = AwsClients.lambda(REGION);
 
         try {
             System.out.println("Deleting Lambda function ...");
@@ -65,6 +66,5 @@ public class LambdaDelete {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        awsLambda.close();
     }
 }
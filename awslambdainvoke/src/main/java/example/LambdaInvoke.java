@@ -7,6 +7,7 @@
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
@@ -33,7 +34,7 @@ public class LambdaInvoke {
 
         System.out.println("Lambda function name: " + functionName);
 
-        LambdaClient awsLambda = LambdaClient.builder().region(REGION).build();
+        LambdaClient awsLambda = AwsClients.lambda(REGION);
 
         try {
             System.out.println("Invoking Lambda function ...");
@@ -82,6 +83,5 @@ public class LambdaInvoke {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        awsLambda.close();
     }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
@@ -31,7 +32,7 @@ public class LambdaList {
 
         System.out.println("Lambda function name: " + functionName);
 
-        LambdaClient awsLambda = LambdaClient.builder().region(REGION).build();
+        LambdaClient awsLambda = AwsClients.lambda(REGION);
 
         try {
             System.out.println("Listing Lambda function ...");
@@ -74,6 +75,5 @@ public class LambdaList {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        awsLambda.close();
     }
 }
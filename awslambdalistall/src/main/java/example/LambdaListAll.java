@@ -5,6 +5,7 @@
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
@@ -21,7 +22,7 @@ public class LambdaListAll {
 
     public static void main(String[] args) {
 
-        LambdaClient awsLambda = LambdaClient.builder().region(REGION).build();
+        LambdaClient awsLambda = AwsClients.lambda(REGION);
 
         try {
             System.out.println("Listing Lambda functions ...");
@@ -69,6 +70,5 @@ public class LambdaListAll {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        awsLambda.close();
     }
 }
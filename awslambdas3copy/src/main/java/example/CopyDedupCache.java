@@ -0,0 +1,55 @@
+/**
+ * CopyDedupCache class with methods for remembering the S3 events already copied.
+ * S3 notifications are delivered at least once, so the same event can reach
+ * the function several times. The cache keeps the most recently copied events
+ * of the container in a LRU map, keyed by bucket, key, version (or ETag) and sequencer.
+ */
+
+package example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
+
+public class CopyDedupCache {
+    private final Map<String, Boolean> entries;
+
+    public CopyDedupCache(final int capacity) {
+        // Access order, so the least recently used entry is the eldest one
+        this.entries = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return true if the object of the event record has already been copied
+     */
+    public synchronized boolean contains(S3EventNotificationRecord record) {
+        return entries.containsKey(keyOf(record));
+    }
+
+    /**
+     * Remember that the object of the event record has been copied
+     */
+    public synchronized void add(S3EventNotificationRecord record) {
+        entries.put(keyOf(record), Boolean.TRUE);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the key of an event record: bucket, key, version or ETag, and sequencer
+     */
+    private static String keyOf(S3EventNotificationRecord record) {
+        S3ObjectEntity object = record.getS3().getObject();
+        String version = object.getVersionId() != null ? object.getVersionId() : object.geteTag();
+        return record.getS3().getBucket().getName() + '\n' + object.getKey() + '\n' +
+                version + '\n' + object.getSequencer();
+    }
+}
@@ -2,6 +2,11 @@
  * AWS Lambda Function S3 Copy Java example.
  * It handles an AWS Lambda function that copies an object
  * when it appears in a S3 bucket to another S3 bucket.
+ * Duplicate deliveries of an event already copied by the container are skipped,
+ * and optionally a copy is skipped if the destination object already has the ETag of the source.
+ * The copy keeps the metadata of the source (COPY directive), so the check is a HEAD of the destination.
+ * The ETag of a copy is only the one of the source for objects uploaded in a single part without
+ * SSE-KMS; the other objects are always copied again.
  */
 
 package example;
@@ -11,17 +16,23 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import example.common.AwsClients;
+import example.common.S3Keys;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 public class S3CopyHandler implements RequestHandler<S3Event, String> {
+    private static final int DEFAULT_DEDUP_CACHE_SIZE = 10000;   // Default number of copied events remembered
+
+    // Created once per container, so warm invocations reuse them
+    private static final S3Client S3_CLIENT = AwsClients.s3();
+    private static final CopyDedupCache COPIED = new CopyDedupCache(dedupCacheSize());
 
     @Override
     public String handleRequest(S3Event s3Event, Context context) {
@@ -39,7 +50,7 @@ public class S3CopyHandler implements RequestHandler<S3Event, String> {
         sourceBucketName = record.getS3().getBucket().getName();
 
         // Source Object Name
-        sourceKeyName = record.getS3().getObject().getKey(); // Name doesn't contain any special characters
+        sourceKeyName = record.getS3().getObject().getUrlDecodedKey();
 
         // Destination Bucket Name
         destinationBucketName = System.getenv("TARGET_BUCKET");
@@ -58,33 +69,47 @@ public class S3CopyHandler implements RequestHandler<S3Event, String> {
         logger.log("Target Bucket: " + destinationBucketName + "\n");
         logger.log("Target Object: " + destinationKeyName + "\n");
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .build();
-
-        String encodedUrl = null;
-        try {
-            encodedUrl = URLEncoder.encode(sourceBucketName + "/" + sourceKeyName, StandardCharsets.UTF_8.toString());
-        } catch (UnsupportedEncodingException e) {
-            logger.log("URL could not be encoded: " + e.getMessage());
+        // Duplicate delivery of an event already copied by this container
+        if (COPIED.contains(record)) {
+            logger.log("Already copied, skipped");
+            return destinationBucketName + "/" + destinationKeyName;
         }
 
+        // The ETag of the source object, the event may not have it
+        String eTag = record.getS3().getObject().geteTag();
+        boolean checkDestination = isCheckDestination() && eTag != null && !eTag.isEmpty();
+
         try {
+            // Duplicate delivery of an event copied by another container
+            if (checkDestination && isCopied(eTag, destinationBucketName, destinationKeyName)) {
+                COPIED.add(record);
+                logger.log("Destination has the same ETag, skipped");
+                return destinationBucketName + "/" + destinationKeyName;
+            }
+
             logger.log("Copying object ...");
 
             // Copy object
-            CopyObjectRequest copyReq = CopyObjectRequest.builder()
-                    .copySource(encodedUrl)
+            CopyObjectRequest.Builder copyReq = CopyObjectRequest.builder()
+                    .copySource(S3Keys.copySource(sourceBucketName, sourceKeyName))
                     .destinationBucket(destinationBucketName)
-                    .destinationKey(destinationKeyName)
-                    .build();
+                    .destinationKey(destinationKeyName);
 
-            CopyObjectResponse copyRes = s3client.copyObject(copyReq);
+            if (checkDestination) {
+                // The copy fails if the source has changed, so the destination has the object of the event
+                copyReq.copySourceIfMatch("\"" + eTag + "\"");
+            }
+
+            CopyObjectResponse copyRes = S3_CLIENT.copyObject(copyReq.build());
+            COPIED.add(record);
 
             logger.log("Copied");
 
         } catch (S3Exception e) {
-            if (e.statusCode() == 404) {
+            if (e.statusCode() == 412) {
+                // The source was overwritten after the event, the event of the new object copies it
+                logger.log("Source object has changed since the event, skipped");
+            } else if (e.statusCode() == 404) {
                 logger.log("Error: Bucket/Object \"" + sourceBucketName + "/" +
                         sourceKeyName + "\" or Bucket \"" + destinationBucketName + "\" do not exist!!");
                 logger.log("S3Exception: " + e);
@@ -111,7 +136,44 @@ public class S3CopyHandler implements RequestHandler<S3Event, String> {
                     "such as not being able to access the network.");
             logger.log("Error Message: " + ace.getMessage());
         }
-        s3client.close();
         return destinationBucketName + "/" + destinationKeyName;
     }
+
+    /**
+     * Return true if the destination object exists and has the ETag of the event
+     */
+    private static boolean isCopied(String eTag, String destinationBucketName, String destinationKeyName) {
+        try {
+            HeadObjectResponse head = S3_CLIENT.headObject(HeadObjectRequest.builder()
+                    .bucket(destinationBucketName)
+                    .key(destinationKeyName)
+                    .build());
+            // The ETag of the event has no quotes
+            return head.eTag() != null && eTag.equals(head.eTag().replace("\"", ""));
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return true if the CHECK_DESTINATION_ETAG environment variable is set to true
+     */
+    private static boolean isCheckDestination() {
+        return Boolean.parseBoolean(System.getenv("CHECK_DESTINATION_ETAG"));
+    }
+
+    /**
+     * Return the number of copied events remembered, from the DEDUP_CACHE_SIZE environment variable
+     */
+    private static int dedupCacheSize() {
+        String value = System.getenv("DEDUP_CACHE_SIZE");
+        try {
+            return value == null || value.isEmpty() ? DEFAULT_DEDUP_CACHE_SIZE : Math.max(Integer.parseInt(value), 1);
+        } catch (NumberFormatException e) {
+            return DEFAULT_DEDUP_CACHE_SIZE;
+        }
+    }
 }
\ No newline at end of file
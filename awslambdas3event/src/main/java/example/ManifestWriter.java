@@ -0,0 +1,241 @@
+/**
+ * ManifestWriter class with methods for collecting S3 object-created records
+ * into gzipped NDJSON manifests written to a S3 bucket.
+ * The records are compressed as they arrive into a buffer kept by the container
+ * between invocations. A manifest is written when the buffer reaches a number of
+ * records or of bytes, when its first record is too old, or when it is flushed.
+ * The age is only checked when the function is invoked: the records of a container that
+ * is not invoked again are lost, unless the maximum age is 0 and every invocation writes its records.
+ * The size of a manifest is measured in bytes of its UTF-8 lines.
+ * A manifest that could not be written is kept and written again on the next flush, up to
+ * a number of compressed bytes; beyond it the oldest records are dropped.
+ */
+
+package example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+public class ManifestWriter {
+    private static final DateTimeFormatter KEY_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy/MM/dd/HH/yyyyMMdd'T'HHmmss.SSS'Z'");
+
+    private final S3Client s3client;
+    private final String bucketName;
+    private final String prefix;
+    private final int maxRecords;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxPendingBytes;
+
+    // Manifest being collected
+    private ByteArrayOutputStream buffer;
+    private GZIPOutputStream writer;
+    private int records;
+    private long bytes;
+    private long firstRecordMillis;
+
+    // Manifest closed but not written yet
+    private byte[] pending;
+    private int pendingRecords;
+    private int droppedRecords;
+
+    /**
+     * Create a manifest writer.
+     * The manifests are written under the prefix of the bucket.
+     * Thresholds: number of records, uncompressed UTF-8 bytes and age in milliseconds of the first record.
+     * The manifests not written are kept up to maxPendingBytes compressed bytes.
+     */
+    public ManifestWriter(S3Client s3client, String bucketName, String prefix,
+                          int maxRecords, long maxBytes, long maxAgeMillis, long maxPendingBytes) {
+        this.s3client     = s3client;
+        this.bucketName   = bucketName;
+        this.prefix       = prefix;
+        this.maxRecords   = Math.max(maxRecords, 1);
+        this.maxBytes     = Math.max(maxBytes, 1);
+        this.maxAgeMillis = Math.max(maxAgeMillis, 0);
+        this.maxPendingBytes = Math.max(maxPendingBytes, 1);
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * Return the number of records waiting to be written
+     */
+    public synchronized int getBufferedRecords() {
+        return records + pendingRecords;
+    }
+
+    /**
+     * Return the number of records dropped since the last call, because the manifests
+     * that could not be written exceeded the maximum pending bytes
+     */
+    public synchronized int takeDroppedRecords() {
+        int dropped = droppedRecords;
+        droppedRecords = 0;
+        return dropped;
+    }
+
+    /**
+     * Add an object-created record to the manifest.
+     * Return false if the record is not an object-created record.
+     */
+    public synchronized boolean add(S3EventNotificationRecord record) {
+        if (record.getEventName() == null || !record.getEventName().startsWith("ObjectCreated")) {
+            return false;
+        }
+        try {
+            if (writer == null) {
+                buffer = new ByteArrayOutputStream();
+                writer = new GZIPOutputStream(buffer);
+                firstRecordMillis = System.currentTimeMillis();
+            }
+            StringBuilder line = new StringBuilder(256);
+            writeRecord(line, record);
+            byte[] data = line.toString().getBytes(StandardCharsets.UTF_8);
+            writer.write(data);
+            records++;
+            bytes += data.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the manifest must be written: it reached a threshold,
+     * or an earlier manifest could not be written
+     */
+    public synchronized boolean isReady() {
+        return pending != null || records >= maxRecords || bytes >= maxBytes ||
+                (records > 0 && System.currentTimeMillis() - firstRecordMillis >= maxAgeMillis);
+    }
+
+    /**
+     * Write the manifest with the buffered records, if any, and return its key.
+     * The name of the manifest ends with the given id, so that names do not collide.
+     * Return null if there was nothing to write.
+     */
+    public synchronized String flush(String id) {
+        try {
+            if (writer != null) {
+                writer.close();
+                // A manifest that could not be written before is still pending, send both
+                // while they fit in the maximum pending bytes, or drop the older one
+                byte[] manifest = buffer.toByteArray();
+                if (pending != null && (long) pending.length + manifest.length > maxPendingBytes) {
+                    droppedRecords += pendingRecords;
+                    pending = null;
+                    pendingRecords = 0;
+                }
+                pending = pending == null ? manifest : concat(pending, manifest);
+                pendingRecords += records;
+                writer = null;
+                buffer = null;
+                records = 0;
+                bytes = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (pending == null) {
+            return null;
+        }
+
+        String keyName = prefix + ZonedDateTime.now(ZoneOffset.UTC).format(KEY_FORMAT) + "-" + id + ".ndjson.gz";
+        s3client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(keyName)
+                        .contentType("application/gzip")
+                        .build(),
+                RequestBody.fromBytes(pending));
+
+        pending = null;
+        pendingRecords = 0;
+        return keyName;
+    }
+
+    /**
+     * Write a record as a line of JSON
+     */
+    private static void writeRecord(StringBuilder out, S3EventNotificationRecord record) {
+        S3ObjectEntity object = record.getS3().getObject();
+        out.append("{\"eventTime\":");
+        writeJsonString(out, record.getEventTime() != null ? record.getEventTime().toString() : null);
+        out.append(",\"eventName\":");
+        writeJsonString(out, record.getEventName());
+        out.append(",\"bucket\":");
+        writeJsonString(out, record.getS3().getBucket().getName());
+        out.append(",\"key\":");
+        writeJsonString(out, object.getUrlDecodedKey());
+        out.append(",\"size\":").append(object.getSizeAsLong());
+        out.append(",\"eTag\":");
+        writeJsonString(out, object.geteTag());
+        out.append(",\"versionId\":");
+        writeJsonString(out, object.getVersionId());
+        out.append(",\"sequencer\":");
+        writeJsonString(out, object.getSequencer());
+        out.append("}\n");
+    }
+
+    /**
+     * Write a JSON string, escaping quotes, backslashes and control characters
+     */
+    private static void writeJsonString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Concatenate two gzip members, which is still a valid gzip file
+     */
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
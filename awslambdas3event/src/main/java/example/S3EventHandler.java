@@ -2,32 +2,122 @@
  * AWS Lambda Function S3 Event Java example.
  * It handles an AWS simple Lambda function that sends information to the log
  * about an object when it appears in a S3 bucket.
+ * When the MANIFEST_BUCKET environment variable is set, the object-created records
+ * are also collected into gzipped NDJSON manifests written to that bucket.
+ * An invocation that writes a manifest fails if the manifest cannot be written, so Lambda
+ * retries it. The records buffered by invocations that returned are lost if the container
+ * is shut down before the manifest is written, up to the maximum age (0 writes every invocation).
  */
 
 package example;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import example.common.AwsClients;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
 
 public class S3EventHandler implements RequestHandler<S3Event, String> {
+    private static final int  DEFAULT_MAX_RECORDS  = 10000;             // Default records per manifest
+    private static final long DEFAULT_MAX_BYTES    = 8L * 1024 * 1024;  // Default uncompressed bytes per manifest
+    private static final long DEFAULT_MAX_AGE      = 60;                // Default age in seconds of a manifest
+    private static final long DEFAULT_FLUSH_MARGIN = 2000;              // Default remaining time (ms) to flush
+    private static final long DEFAULT_MAX_PENDING  = 64L * 1024 * 1024; // Default compressed bytes kept unwritten
+
+    // Created once per container, so the buffered records survive between invocations
+    private static final ManifestWriter MANIFEST = createManifestWriter();
 
     @Override
     public String handleRequest(S3Event s3Event, Context context) {
-        // Get Event Record
-        S3EventNotificationRecord record = s3Event.getRecords().get(0);
+        LambdaLogger logger = context.getLogger();
+        String result = null;
+
+        for (S3EventNotificationRecord record : s3Event.getRecords()) {
+            // Source Bucket Name
+            String srcBucketName = record.getS3().getBucket().getName();
+
+            // Source File Name
+            String srcObjectName = record.getS3().getObject().getUrlDecodedKey();
 
-        // Source Bucket Name
-        String srcBucketName = record.getS3().getBucket().getName();
+            logger.log("Bucket: " + srcBucketName + "\n");
+            logger.log("Object: " + srcObjectName + "\n");
 
-        // Source File Name
-        String srcObjectName = record.getS3().getObject().getUrlDecodedKey();
+            if (MANIFEST != null) {
+                MANIFEST.add(record);
+            }
+            if (result == null) {
+                result = srcBucketName + "/" + srcObjectName;
+            }
+        }
+
+        if (MANIFEST != null && (MANIFEST.isReady() ||
+                context.getRemainingTimeInMillis() < getLong("MANIFEST_FLUSH_MARGIN_MS", DEFAULT_FLUSH_MARGIN))) {
+            int records = MANIFEST.getBufferedRecords();
+            try {
+                String manifestKey = MANIFEST.flush(context.getAwsRequestId());
+                if (manifestKey != null) {
+                    logger.log("Manifest: " + MANIFEST.getBucketName() + "/" + manifestKey +
+                            " (" + records + " records)\n");
+                }
+            } catch (SdkException e) {
+                // The manifest is kept and written again on the next flush. The invocation fails,
+                // so Lambda retries it instead of acknowledging records that are only in memory.
+                logger.log("Error writing manifest of " + records + " records: " + e.getMessage() + "\n");
+                throw e;
+            } finally {
+                int dropped = MANIFEST.takeDroppedRecords();
+                if (dropped > 0) {
+                    logger.log("Dropped " + dropped + " records of manifests that could not be written\n");
+                }
+            }
+        }
+
+        return result;
+    }
 
-        context.getLogger().log("S3Event: " + s3Event + "\n");
-        context.getLogger().log("Bucket: " + srcBucketName + "\n");
-        context.getLogger().log("Object: " + srcObjectName + "\n");
+    /**
+     * Create the manifest writer from the environment variables, or return null if MANIFEST_BUCKET is not set
+     */
+    private static ManifestWriter createManifestWriter() {
+        String bucketName = System.getenv("MANIFEST_BUCKET");
+        if (bucketName == null || bucketName.isEmpty()) {
+            return null;
+        }
+        String prefix = System.getenv("MANIFEST_PREFIX");
+        if (prefix == null) {
+            prefix = "manifests/";
+        }
+
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3();
+
+        return new ManifestWriter(s3client, bucketName, prefix,
+                getInt("MANIFEST_MAX_RECORDS", DEFAULT_MAX_RECORDS),
+                getLong("MANIFEST_MAX_BYTES", DEFAULT_MAX_BYTES),
+                Math.min(getLong("MANIFEST_MAX_AGE_SECONDS", DEFAULT_MAX_AGE), Long.MAX_VALUE / 1000) * 1000,
+                getLong("MANIFEST_MAX_PENDING_BYTES", DEFAULT_MAX_PENDING));
+    }
+
+    /**
+     * Return the value of a numeric environment variable limited to the int range, or the default value
+     */
+    private static int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(value, Integer.MAX_VALUE));
+    }
 
-        return srcBucketName + "/" + srcObjectName;
+    /**
+     * Return the value of a numeric environment variable, or the default value
+     */
+    private static long getLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        try {
+            return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 }
@@ -2,48 +2,55 @@
  * AWS Lambda Function S3 Move Java example
  * It handles an AWS Lambda function that moves an object
  * when it appears in a S3 bucket to another S3 bucket.
+ * All the records of an event are moved, several at a time.
+ * The S3 client is created once per container and reused by warm invocations.
  */
 
 package example;
 
 import java.util.ArrayList;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import example.common.AwsClients;
+import example.common.S3Keys;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
-import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.S3Error;
 
 public class S3MoveHandler implements RequestHandler<S3Event, String> {
+    private static final int DEFAULT_MAX_CONCURRENCY = 8;   // Default number of records moved at the same time
+
+    // Created once per container, so warm invocations reuse its connections and credentials
+    private static final S3Client S3_CLIENT = AwsClients.s3();
+
+    // Bounded pool of workers that move the records of an event
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(maxConcurrency(), runnable -> {
+        Thread thread = new Thread(runnable, "s3-move");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public String handleRequest(S3Event s3Event, Context context) {
-        String sourceBucketName;              // Source bucket name
-        String sourceKeyName;                 // Source key name
         String destinationBucketName;         // Destination bucket name
-        String destinationKeyName;            // Destination key name
 
         LambdaLogger logger = context.getLogger();
 
-        // Get Event Record
-        S3EventNotificationRecord record = s3Event.getRecords().get(0);
-
-        // Source Bucket Name
-        sourceBucketName = record.getS3().getBucket().getName();
-
-        // Source Object Name
-        sourceKeyName = record.getS3().getObject().getKey(); // Name doesn't contain any special characters
-
         // Destination Bucket Name
         destinationBucketName = System.getenv("TARGET_BUCKET");
 
@@ -52,37 +59,87 @@ public class S3MoveHandler implements RequestHandler<S3Event, String> {
             System.exit(1);
         }
 
+        // Get Event Records
+        List<S3EventNotificationRecord> records = s3Event.getRecords();
+        logger.log("S3Event: " + records.size() + " records\n");
+        logger.log("Target Bucket: " + destinationBucketName + "\n");
+
+        List<String> moved = new ArrayList<>(records.size());
+        int failed = 0;
+
+        if (records.size() == 1) {
+            // Nothing to run in parallel
+            String result = moveObject(records.get(0), destinationBucketName, logger);
+            if (result != null) {
+                moved.add(result);
+            } else {
+                failed++;
+            }
+        } else {
+            List<Callable<String>> tasks = new ArrayList<>(records.size());
+            for (S3EventNotificationRecord record : records) {
+                tasks.add(() -> moveObject(record, destinationBucketName, logger));
+            }
+            try {
+                for (Future<String> future : POOL.invokeAll(tasks)) {
+                    String result = future.get();
+                    if (result != null) {
+                        moved.add(result);
+                    } else {
+                        failed++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while moving objects", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error moving objects", e.getCause());
+            }
+        }
+
+        logger.log("Moved " + moved.size() + " of " + records.size() + " objects\n");
+
+        // Fail the invocation so that Lambda retries the event instead of losing the records
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + records.size() + " objects could not be moved");
+        }
+        return String.join(",", moved);
+    }
+
+    /**
+     * Move the object of an event record.
+     * Return the destination bucket and key, or null if the object could not be moved.
+     */
+    private static String moveObject(S3EventNotificationRecord record, String destinationBucketName,
+                                     LambdaLogger logger) {
+        String sourceBucketName;              // Source bucket name
+        String sourceKeyName;                 // Source key name
+        String destinationKeyName;            // Destination key name
+
+        // Source Bucket Name
+        sourceBucketName = record.getS3().getBucket().getName();
+
+        // Source Object Name
+        sourceKeyName = record.getS3().getObject().getUrlDecodedKey();
+
         // Destination File Name
         destinationKeyName = sourceKeyName;
 
-        logger.log("S3Event: " + s3Event);
         logger.log("Source Bucket: " + sourceBucketName + "\n");
         logger.log("Source Object: " + sourceKeyName + "\n");
-        logger.log("Target Bucket: " + destinationBucketName + "\n");
         logger.log("Target Object: " + destinationKeyName + "\n");
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .build();
-
-        String encodedUrl = null;
-        try {
-            encodedUrl = URLEncoder.encode(sourceBucketName + "/" + sourceKeyName, StandardCharsets.UTF_8.toString());
-        } catch (UnsupportedEncodingException e) {
-            logger.log("URL could not be encoded: " + e.getMessage());
-        }
-
         try {
-            logger.log("Moving object ...");
+            logger.log("Moving object " + sourceKeyName + " ...");
 
             // Copy object
             CopyObjectRequest copyReq = CopyObjectRequest.builder()
-                    .copySource(encodedUrl)
+                    .copySource(S3Keys.copySource(sourceBucketName, sourceKeyName))
                     .destinationBucket(destinationBucketName)
                     .destinationKey(destinationKeyName)
                     .build();
 
-            CopyObjectResponse copyRes = s3client.copyObject(copyReq);
+            S3_CLIENT.copyObject(copyReq);
 
             // Delete Object
             ArrayList<ObjectIdentifier> toDelete = new ArrayList<ObjectIdentifier>();
@@ -90,14 +147,26 @@ public class S3MoveHandler implements RequestHandler<S3Event, String> {
 
             DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
                     .bucket(sourceBucketName)
-                    .delete(Delete.builder().objects(toDelete).build())
+                    .delete(Delete.builder().objects(toDelete).quiet(true).build())
                     .build();
-            s3client.deleteObjects(delReq);
+            DeleteObjectsResponse delRes = S3_CLIENT.deleteObjects(delReq);
 
-            logger.log("Moved");
+            // In quiet mode the response only contains the keys that could not be deleted
+            if (!delRes.errors().isEmpty()) {
+                S3Error error = delRes.errors().get(0);
+                logger.log("Error deleting \"" + error.key() + "\": " + error.code() + " - " + error.message());
+                return null;
+            }
+
+            logger.log("Moved " + sourceKeyName);
+            return destinationBucketName + "/" + destinationKeyName;
 
         } catch (S3Exception e) {
-            if (e.statusCode() == 404) {
+            if (e.statusCode() == 404 && "NoSuchKey".equals(e.awsErrorDetails().errorCode())) {
+                // A retried event whose object was already moved
+                logger.log("Object \"" + sourceBucketName + "/" + sourceKeyName + "\" does not exist, already moved");
+                return destinationBucketName + "/" + destinationKeyName;
+            } else if (e.statusCode() == 404) {
                 logger.log("Error: Bucket/Object \"" + sourceBucketName + "/" +
                         sourceKeyName + "\" or Bucket \"" + destinationBucketName + "\" do not exist!!");
                 logger.log("S3Exception: " + e);
@@ -124,7 +193,18 @@ public class S3MoveHandler implements RequestHandler<S3Event, String> {
                     "such as not being able to access the network.");
             logger.log("Error Message: " + ace.getMessage());
         }
-        s3client.close();
-        return destinationBucketName + "/" + destinationKeyName;
+        return null;
+    }
+
+    /**
+     * Return the number of records moved at the same time, from the MAX_CONCURRENCY environment variable
+     */
+    private static int maxConcurrency() {
+        String value = System.getenv("MAX_CONCURRENCY");
+        try {
+            return value == null || value.isEmpty() ? DEFAULT_MAX_CONCURRENCY : Math.max(Integer.parseInt(value), 1);
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_CONCURRENCY;
+        }
     }
 }
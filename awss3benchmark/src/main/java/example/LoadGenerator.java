@@ -0,0 +1,175 @@
+/**
+ * LoadGenerator class with methods for running an operation many times concurrently
+ * and recording its latency in a HdrHistogram.
+ * In closed loop each worker starts an operation as soon as its previous one ends.
+ * At a fixed rate the operations are started on schedule, whatever the time the previous
+ * ones take, and the latency is measured from the time the operation should have started,
+ * so the time waiting for a free worker is included (no coordinated omission).
+ * The throughput and the latency percentiles are printed every second.
+ */
+
+package example;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+public class LoadGenerator {
+    private static final int SIGNIFICANT_DIGITS = 3;    // Precision of the histograms
+    private static final int MAX_ERRORS_SHOWN   = 10;   // Errors printed, the rest are only counted
+
+    private final int concurrency;
+    private final double rate;
+    private final long durationNanos;
+    private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+    private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean stopped;
+    private long elapsedNanos;
+
+    /**
+     * Operation run by the load generator
+     */
+    public interface Operation {
+        /**
+         * Run the operation once. Return false if there is nothing left to do, which ends the test.
+         * An exception is counted as an error.
+         */
+        boolean run() throws Exception;
+    }
+
+    /**
+     * Create a load generator.
+     * concurrency = maximum number of operations in flight
+     * rate        = operations started per second, zero for a closed loop
+     */
+    public LoadGenerator(int concurrency, double rate, long duration, TimeUnit unit) {
+        this.concurrency   = Math.max(concurrency, 1);
+        this.rate          = Math.max(rate, 0);
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    public long getOperations() {
+        return operations.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Return the latency of all the operations, in microseconds
+     */
+    public Histogram getHistogram() {
+        return total;
+    }
+
+    /**
+     * Run the operation until the duration has elapsed or there is nothing left to do,
+     * printing the progress every second
+     */
+    public void run(Operation operation, PrintStream out) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "load-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "load-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        out.println("   Time     Ops/s   p50 (ms)   p99 (ms) p99.9 (ms)   Errors");
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        AtomicLong seconds = new AtomicLong();
+        AtomicLong lastErrors = new AtomicLong();
+        reporter.scheduleAtFixedRate(() -> report(out, seconds.incrementAndGet(), lastErrors),
+                1, 1, TimeUnit.SECONDS);
+
+        try {
+            if (rate == 0) {
+                // Closed loop: each worker runs the next operation as soon as the previous one ends
+                for (int i = 0; i < concurrency; i++) {
+                    pool.execute(() -> {
+                        while (!stopped && System.nanoTime() < end) {
+                            execute(operation, System.nanoTime(), out);
+                        }
+                    });
+                }
+            } else {
+                // Fixed rate: the operations wait in the queue of the pool when all the workers are busy
+                long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+                for (long n = 0; !stopped; n++) {
+                    long intended = start + n * interval;
+                    if (intended >= end) {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    pool.execute(() -> {
+                        if (!stopped) {
+                            execute(operation, intended, out);
+                        }
+                    });
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            elapsedNanos = System.nanoTime() - start;
+            reporter.shutdownNow();
+            reporter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        // The operations that ended after the last report
+        total.add(recorder.getIntervalHistogram());
+    }
+
+    /**
+     * Run an operation and record its latency from the time it should have started
+     */
+    private void execute(Operation operation, long intendedStart, PrintStream out) {
+        try {
+            if (!operation.run()) {
+                stopped = true;
+                return;
+            }
+            recorder.recordValue(Math.max(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart), 1));
+            operations.incrementAndGet();
+        } catch (Exception e) {
+            if (errors.incrementAndGet() <= MAX_ERRORS_SHOWN) {
+                out.println("Error: " + e);
+            }
+        }
+    }
+
+    /**
+     * Print the throughput and the latency of the operations that ended since the last report
+     */
+    private void report(PrintStream out, long seconds, AtomicLong lastErrors) {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        long currentErrors = errors.get();
+        out.printf("%7d %9d %10.3f %10.3f %10.3f %8d\n",
+                seconds,
+                interval.getTotalCount(),
+                interval.getValueAtPercentile(50) / 1000.0,
+                interval.getValueAtPercentile(99) / 1000.0,
+                interval.getValueAtPercentile(99.9) / 1000.0,
+                currentErrors - lastErrors.getAndSet(currentErrors));
+    }
+}
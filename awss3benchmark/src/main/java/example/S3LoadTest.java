@@ -0,0 +1,340 @@
+/**
+ * S3LoadTest is an example that generates load on the S3 operations of the examples
+ * and reports their latency percentiles with HdrHistogram.
+ * Each operation runs the request logic the examples share in the awscommon module:
+ * copy   = S3Objects.copyObject, copy an object to the destination bucket (as S3Copy)
+ * move   = S3Objects.moveObject, copy an object and delete the source object (as S3Move)
+ * list   = ListObjectsV2 pages of all the objects of the test (as S3List, without the output)
+ * delete = BulkDelete, delete a batch of objects with a DeleteObjects request (as S3DeleteObject)
+ * By default the operations run against a S3 stand-in in the same process, so no AWS account is needed.
+ * You must provide 1 parameter:
+ * OPERATION = copy, move, list or delete
+ * Optional parameters:
+ * --endpoint <URL>     = S3-compatible endpoint, instead of the stand-in
+ * --bucket <NAME>      = Bucket of the objects
+ * --destination <NAME> = Destination bucket of copy and move
+ * --prefix <PREFIX>    = Prefix of the keys of the objects
+ * --objects <N>        = Number of objects created before the test
+ * --size <KB>          = Size of the objects in KB
+ * --concurrency <N>    = Maximum number of operations in flight
+ * --rate <OPS>         = Operations started per second (by default, closed loop)
+ * --duration <S>       = Duration of the test in seconds
+ * --batch-size <N>     = Keys deleted by each delete operation
+ * --histogram <FILE>   = Write the latency percentile distribution to a file
+ * The move and delete operations use each object once, the test ends when all the objects are used.
+ */
+
+package example;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import example.common.AwsClients;
+import example.common.BulkDelete;
+import example.common.ClientSettings;
+import example.common.S3Objects;
+import org.HdrHistogram.Histogram;
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+
+public class S3LoadTest {
+    private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final String DEFAULT_BUCKET      = "loadtest";
+    private static final String DEFAULT_DESTINATION = "loadtest-destination";
+    private static final String DEFAULT_PREFIX      = "loadtest/";
+    private static final int    DEFAULT_OBJECTS     = 10000;   // Default number of objects
+    private static final int    DEFAULT_SIZE        = 4;       // Default object size in KB
+    private static final int    DEFAULT_CONCURRENCY = 64;      // Default operations in flight
+    private static final long   DEFAULT_DURATION    = 30;      // Default duration in seconds
+    private static final int    DEFAULT_BATCH_SIZE  = 1;       // Default keys per delete operation
+
+    public static void main(String[] args) {
+        String operationName;          // Operation: copy, move, list or delete
+        URI endpoint = null;           // S3-compatible endpoint, null for the stand-in
+        String bucketName = DEFAULT_BUCKET;
+        String destinationBucketName = DEFAULT_DESTINATION;
+        String prefix = DEFAULT_PREFIX;
+        int objects = DEFAULT_OBJECTS;
+        int size = DEFAULT_SIZE;
+        int concurrency = DEFAULT_CONCURRENCY;
+        double rate = 0;
+        long duration = DEFAULT_DURATION;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        String histogramFileName = null;
+
+        if (args.length < 1) {
+            System.out.println("Not enough parameters.");
+            printUsage();
+            System.exit(1);
+        }
+
+        operationName = args[0];
+        if (!operationName.matches("copy|move|list|delete")) {
+            System.out.println("Invalid operation: " + operationName);
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--endpoint":
+                        endpoint = URI.create(args[++i]);
+                        break;
+                    case "--bucket":
+                        bucketName = args[++i];
+                        break;
+                    case "--destination":
+                        destinationBucketName = args[++i];
+                        break;
+                    case "--prefix":
+                        prefix = args[++i];
+                        break;
+                    case "--objects":
+                        objects = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "--concurrency":
+                        concurrency = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Long.parseLong(args[++i]);
+                        break;
+                    case "--batch-size":
+                        batchSize = Math.max(Math.min(Integer.parseInt(args[++i]), BulkDelete.MAX_BATCH_SIZE), 1);
+                        break;
+                    case "--histogram":
+                        histogramFileName = args[++i];
+                        break;
+                    default:
+                        System.out.println("Invalid parameter: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid parameters.");
+            printUsage();
+            System.exit(1);
+        }
+
+        // Every operation in flight needs a connection of the shared HTTP client
+        ClientSettings settings = ClientSettings.fromEnvironment();
+        if (settings.getMaxConnections() < concurrency) {
+            AwsClients.configure(settings.toBuilder().maxConnections(concurrency).build());
+        }
+
+        S3StandIn standIn = null;
+        try {
+            if (endpoint == null) {
+                standIn = new S3StandIn();
+                endpoint = standIn.getEndpoint();
+            }
+
+            System.out.println("Endpoint:    " + endpoint + (standIn != null ? " (stand-in)" : ""));
+            System.out.println("Operation:   " + operationName);
+            System.out.println("Objects:     " + objects + " of " + size + " KB");
+            System.out.println("Bucket:      " + bucketName + " (prefix " + prefix + ")");
+            System.out.println("Concurrency: " + concurrency + " (" + AwsClients.settings().getMaxConnections() +
+                    " connections)");
+            System.out.println("Mode:        " + (rate > 0 ? "fixed rate of " + rate + " ops/s" : "closed loop"));
+
+            // The stand-in does not check the signature and does not return the MD5 of the objects
+            boolean useStandIn = standIn != null;
+            S3Client s3client = S3Client.builder()
+                    .region(REGION)
+                    .endpointOverride(endpoint)
+                    .applyMutation(builder -> {
+                        if (useStandIn) {
+                            builder.credentialsProvider(AnonymousCredentialsProvider.create());
+                        }
+                    })
+                    .serviceConfiguration(S3Configuration.builder()
+                            .pathStyleAccessEnabled(true)
+                            .checksumValidationEnabled(!useStandIn)
+                            .build())
+                    .httpClient(AwsClients.httpClient())
+                    .overrideConfiguration(AwsClients.overrideConfiguration())
+                    .build();
+
+            List<String> keys = new ArrayList<>(objects);
+            for (int i = 0; i < objects; i++) {
+                keys.add(String.format("%s%08d", prefix, i));
+            }
+
+            System.out.println("Preparing objects ...");
+            byte[] content = new byte[size * 1024];
+            if (standIn != null) {
+                for (String key : keys) {
+                    standIn.putObject(bucketName, key, content);
+                }
+            } else {
+                putObjects(s3client, bucketName, keys, content, concurrency);
+            }
+
+            LoadGenerator.Operation operation = createOperation(operationName, s3client, bucketName,
+                    destinationBucketName, prefix, keys, batchSize, concurrency);
+
+            System.out.println("Running " + operationName + " for " + duration + " s ...");
+            LoadGenerator generator = new LoadGenerator(concurrency, rate, duration, TimeUnit.SECONDS);
+            generator.run(operation, System.out);
+
+            printSummary(generator);
+            if (histogramFileName != null) {
+                try (PrintStream out = new PrintStream(histogramFileName)) {
+                    // Values in milliseconds
+                    generator.getHistogram().outputPercentileDistribution(out, 1000.0);
+                }
+                System.out.println("Histogram:   " + histogramFileName);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted");
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                System.out.println("Error: Bucket \"" + bucketName + "\" or \"" + destinationBucketName +
+                        "\" does not exist!!");
+            }
+            System.out.println("S3Exception: " + e);
+        } catch (SdkException e) {
+            System.out.println("Error preparing the objects: " + e.getMessage());
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+    }
+
+    /**
+     * Create an operation that runs the request logic of an example on the test objects
+     */
+    private static LoadGenerator.Operation createOperation(String operationName, S3Client s3client,
+                                                           String bucketName, String destinationBucketName,
+                                                           String prefix, List<String> keys,
+                                                           int batchSize, int concurrency) {
+        AtomicLong next = new AtomicLong();
+        switch (operationName) {
+            case "copy":
+                // The objects are copied again and again
+                return () -> {
+                    String key = keys.get((int) (next.getAndIncrement() % keys.size()));
+                    S3Objects.copyObject(s3client, bucketName, key, destinationBucketName, key);
+                    return true;
+                };
+            case "move":
+                // Each object is moved once
+                return () -> {
+                    long i = next.getAndIncrement();
+                    if (i >= keys.size()) {
+                        return false;
+                    }
+                    String key = keys.get((int) i);
+                    S3Objects.moveObject(s3client, bucketName, key, destinationBucketName, key);
+                    return true;
+                };
+            case "list":
+                ListObjectsV2Request listReq = ListObjectsV2Request.builder()
+                        .bucket(bucketName)
+                        .prefix(prefix)
+                        .build();
+                return () -> {
+                    // The paginator requests every page, the objects listed are discarded
+                    s3client.listObjectsV2Paginator(listReq).forEach(page -> { });
+                    return true;
+                };
+            default:
+                // Each object is deleted once, in batches
+                BulkDelete bulkDelete = new BulkDelete(s3client, concurrency);
+                return () -> {
+                    long first = next.getAndAdd(batchSize);
+                    if (first >= keys.size()) {
+                        return false;
+                    }
+                    List<String> batch = keys.subList((int) first, (int) Math.min(first + batchSize, keys.size()));
+                    int failed = bulkDelete.delete(bucketName, batch);
+                    if (failed > 0) {
+                        throw SdkClientException.create(failed + " keys could not be deleted");
+                    }
+                    return true;
+                };
+        }
+    }
+
+    /**
+     * Upload the test objects to the endpoint
+     */
+    private static void putObjects(S3Client s3client, String bucketName, List<String> keys, byte[] content,
+                                   int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong failed = new AtomicLong();
+        for (String key : keys) {
+            pool.execute(() -> {
+                try {
+                    s3client.putObject(PutObjectRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(key)
+                                    .build(),
+                            RequestBody.fromBytes(content));
+                } catch (SdkException e) {
+                    if (failed.incrementAndGet() == 1) {
+                        System.out.println("Error uploading \"" + key + "\": " + e.getMessage());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (failed.get() > 0) {
+            throw SdkClientException.create(failed.get() + " objects could not be uploaded");
+        }
+    }
+
+    /**
+     * Print the throughput and the latency percentiles of the whole test
+     */
+    private static void printSummary(LoadGenerator generator) {
+        double seconds = Math.max(generator.getElapsedNanos(), 1) / 1e9;
+        Histogram histogram = generator.getHistogram();
+        System.out.printf("Operations:  %d (%d errors) in %.2f s: %.0f ops/s\n",
+                generator.getOperations(), generator.getErrors(), seconds, generator.getOperations() / seconds);
+        System.out.printf("Latency (ms): p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f\n",
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -cp awss3benchmark.jar example.S3LoadTest " +
+                "<copy|move|list|delete> [--endpoint <URL>] [--bucket <NAME>] [--destination <NAME>] " +
+                "[--prefix <PREFIX>] [--objects <N>] [--size <KB>] [--concurrency <N>] [--rate <OPS>] " +
+                "[--duration <S>] [--batch-size <N>] [--histogram <FILE>]");
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * S3StandIn class with a minimal S3-compatible HTTP server running in the same process,
+ * so that the S3 client can be measured without AWS and without network latency.
+ * It answers path-style requests (http://host:port/bucket/key) without checking the signature,
+ * and every bucket exists. It supports:
+ * GET and HEAD of an object, ListObjectsV2, CopyObject, DeleteObject and DeleteObjects.
+ * The objects are added with putObject. PUT of an object reads the body and discards it,
+ * so that the server does not allocate memory for every upload.
+ * A copy shares the content of its source object.
+ */
+
+package example;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class S3StandIn implements AutoCloseable {
+    private static final String ETAG = "\"00000000000000000000000000000000\"";  // ETag of every object
+    private static final ZonedDateTime MODIFIED = ZonedDateTime.of(2021, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final String LAST_MODIFIED = DateTimeFormatter.RFC_1123_DATE_TIME.format(MODIFIED);
+    private static final String LAST_MODIFIED_XML = DateTimeFormatter.ISO_INSTANT.format(MODIFIED);
+    private static final Pattern KEY_ELEMENT = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_KEYS    = 1000;    // Maximum number of keys of a listing page
+    private static final int BACKLOG     = 1024;    // Connections waiting to be accepted
+
+    static {
+        // Without TCP_NODELAY the small responses wait for the delayed ACK of the client
+        setDefault("sun.net.httpserver.nodelay", "true");
+        // By default the server closes the idle connections above 200, which the client may be reusing
+        setDefault("sun.net.httpserver.maxIdleConnections", "10000");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Objects by "bucket/key", sorted so that a prefix can be listed
+    private final ConcurrentSkipListMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Start the server on a free port of the loopback address
+     */
+    public S3StandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "s3-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Return the endpoint to give to the client with endpointOverride
+     */
+    public URI getEndpoint() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getAddress().getHostAddress() + ":" + address.getPort());
+    }
+
+    /**
+     * Add an object that can be downloaded with GET
+     */
+    public void putObject(String bucketName, String keyName, byte[] content) {
+        objects.put(bucketName + "/" + keyName, content);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = decode(exchange.getRequestURI().getRawPath().substring(1));
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            int slash = path.indexOf('/');
+            String bucketName = slash < 0 ? path : path.substring(0, slash);
+            String keyName = slash < 0 ? "" : path.substring(slash + 1);
+            exchange.getResponseHeaders().set("x-amz-request-id", "standin");
+
+            switch (exchange.getRequestMethod()) {
+                case "PUT":
+                    String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+                    if (copySource != null) {
+                        copyObject(exchange, decode(copySource), path);
+                    } else {
+                        bytesReceived.addAndGet(discard(exchange.getRequestBody()));
+                        exchange.getResponseHeaders().set("ETag", ETAG);
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    break;
+                case "GET":
+                case "HEAD":
+                    if (keyName.isEmpty()) {
+                        listObjects(exchange, bucketName, query);
+                    } else {
+                        getObject(exchange, path);
+                    }
+                    break;
+                case "POST":
+                    if (query.containsKey("delete")) {
+                        deleteObjects(exchange, bucketName);
+                    } else {
+                        sendError(exchange, 501, "NotImplemented");
+                    }
+                    break;
+                case "DELETE":
+                    objects.remove(path);
+                    exchange.sendResponseHeaders(204, -1);
+                    break;
+                default:
+                    sendError(exchange, 405, "MethodNotAllowed");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String name) throws IOException {
+        byte[] content = objects.get(name);
+        if (content == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/octet-stream");
+        headers.set("ETag", ETAG);
+        headers.set("Last-Modified", LAST_MODIFIED);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            headers.set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, content.length == 0 ? -1 : content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+        bytesSent.addAndGet(content.length);
+    }
+
+    private void copyObject(HttpExchange exchange, String source, String destination) throws IOException {
+        discard(exchange.getRequestBody());
+        byte[] content = objects.get(source.startsWith("/") ? source.substring(1) : source);
+        if (content == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        objects.put(destination, content);
+        sendXml(exchange, "<CopyObjectResult><LastModified>" + LAST_MODIFIED_XML + "</LastModified>" +
+                "<ETag>" + escape(ETAG) + "</ETag></CopyObjectResult>");
+    }
+
+    private void listObjects(HttpExchange exchange, String bucketName, Map<String, String> query)
+            throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String after = query.getOrDefault("continuation-token", query.get("start-after"));
+        int maxKeys = MAX_KEYS;
+        if (query.containsKey("max-keys")) {
+            maxKeys = Math.min(Integer.parseInt(query.get("max-keys")), MAX_KEYS);
+        }
+
+        String from = bucketName + "/" + prefix;
+        NavigableMap<String, byte[]> range = after == null
+                ? objects.tailMap(from, true)
+                : objects.tailMap(bucketName + "/" + after, false);
+
+        StringBuilder contents = new StringBuilder();
+        int count = 0;
+        String lastKey = null;
+        boolean truncated = false;
+        for (Map.Entry<String, byte[]> entry : range.entrySet()) {
+            if (!entry.getKey().startsWith(from)) {
+                break;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            lastKey = entry.getKey().substring(bucketName.length() + 1);
+            contents.append("<Contents><Key>").append(escape(lastKey)).append("</Key>")
+                    .append("<LastModified>").append(LAST_MODIFIED_XML).append("</LastModified>")
+                    .append("<ETag>").append(escape(ETAG)).append("</ETag>")
+                    .append("<Size>").append(entry.getValue().length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+
+        sendXml(exchange, "<ListBucketResult><Name>" + escape(bucketName) + "</Name>" +
+                "<Prefix>" + escape(prefix) + "</Prefix><KeyCount>" + count + "</KeyCount>" +
+                "<MaxKeys>" + maxKeys + "</MaxKeys><IsTruncated>" + truncated + "</IsTruncated>" +
+                (truncated ? "<NextContinuationToken>" + escape(lastKey) + "</NextContinuationToken>" : "") +
+                contents + "</ListBucketResult>");
+    }
+
+    private void deleteObjects(HttpExchange exchange, String bucketName) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = buffers.get();
+        InputStream in = exchange.getRequestBody();
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        String request = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        boolean quiet = request.contains("<Quiet>true</Quiet>");
+
+        StringBuilder result = new StringBuilder("<DeleteResult>");
+        Matcher matcher = KEY_ELEMENT.matcher(request);
+        while (matcher.find()) {
+            String keyName = unescape(matcher.group(1));
+            objects.remove(bucketName + "/" + keyName);
+            if (!quiet) {
+                result.append("<Deleted><Key>").append(escape(keyName)).append("</Key></Deleted>");
+            }
+        }
+        sendXml(exchange, result.append("</DeleteResult>").toString());
+    }
+
+    /**
+     * Read the request body into a buffer of the thread and return its length
+     */
+    private long discard(InputStream in) throws IOException {
+        byte[] buffer = buffers.get();
+        long length = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            length += n;
+        }
+        return length;
+    }
+
+    private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+        byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] body = ("<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                query.put(decode(parameter), "");
+            } else {
+                query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        // The SDK encodes the spaces as %20, so a '+' is a plus sign
+        return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8.name());
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * S3TransferBenchmark is a JMH benchmark of the S3 transfer paths used by the examples.
+ * The uploads and downloads run against S3StandIn, an S3-compatible HTTP server in the same process,
+ * through the shared HTTP client of AwsClients, so no AWS account is needed.
+ * Uploads:
+ * putFromBytes   = Read the whole file in memory and send it with RequestBody.fromBytes
+ * putFromFile    = Send the file with RequestBody.fromFile
+ * putFromStream  = Send a stream over the file channel with RequestBody.fromInputStream
+ * Downloads:
+ * getAsBytes     = Read the whole object in memory with getObjectAsBytes
+ * getToFile      = Write the object to a file with ResponseTransformer.toFile
+ * getToStream    = Copy the object stream to a file, as S3Download does
+ * Every benchmark runs for each object size, and reports the operations and bytes per second.
+ * The allocation rate is reported by the JMH GC profiler, added when no profiler is given.
+ * Any JMH option can be given, for example: -p sizeKb=1024 -f 2 -t 4 putFromFile
+ */
+
+package example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import example.common.AwsClients;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class S3TransferBenchmark {
+    private static final Region REGION = Region.of("eu-west-1");   // Region name, not used by the stand-in
+    private static final String BUCKET_NAME = "benchmark";          // Bucket name
+
+    @Param({"4", "256", "4096", "65536"})
+    public int sizeKb;                // Object size in KB
+
+    private S3StandIn standIn;
+    private S3Client s3client;
+    private long objectSize;
+    private Path localFile;           // File uploaded
+    private PutObjectRequest putOb;
+    private GetObjectRequest getOb;
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(S3TransferBenchmark.class.getName());
+        }
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        objectSize = sizeKb * 1024L;
+        String keyName = "object-" + sizeKb + "kb";
+
+        byte[] content = new byte[(int) objectSize];
+        new Random(objectSize).nextBytes(content);
+        localFile = Files.createTempFile("s3benchmark", ".bin");
+        Files.write(localFile, content);
+
+        standIn = new S3StandIn();
+        standIn.putObject(BUCKET_NAME, keyName, content);
+
+        // The stand-in is reached over HTTP, where signed requests would also hash the whole body,
+        // so the requests are sent unsigned. The stand-in does not return the MD5 of the body as ETag.
+        s3client = S3Client.builder()
+                .region(REGION)
+                .endpointOverride(standIn.getEndpoint())
+                .credentialsProvider(AnonymousCredentialsProvider.create())
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(true)
+                        .checksumValidationEnabled(false)
+                        .build())
+                .httpClient(AwsClients.httpClient())
+                .overrideConfiguration(AwsClients.overrideConfiguration())
+                .build();
+
+        putOb = PutObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(keyName)
+                .build();
+        getOb = GetObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(keyName)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        s3client.close();
+        standIn.close();
+        Files.deleteIfExists(localFile);
+    }
+
+    @Benchmark
+    public PutObjectResponse putFromBytes(Bytes bytes) throws IOException {
+        byte[] content = Files.readAllBytes(localFile);
+        PutObjectResponse response = s3client.putObject(putOb, RequestBody.fromBytes(content));
+        bytes.bytes += objectSize;
+        return response;
+    }
+
+    @Benchmark
+    public PutObjectResponse putFromFile(Bytes bytes) {
+        PutObjectResponse response = s3client.putObject(putOb, RequestBody.fromFile(localFile));
+        bytes.bytes += objectSize;
+        return response;
+    }
+
+    @Benchmark
+    public PutObjectResponse putFromStream(Bytes bytes) throws IOException {
+        try (InputStream in = Files.newInputStream(localFile)) {
+            PutObjectResponse response = s3client.putObject(putOb, RequestBody.fromInputStream(in, objectSize));
+            bytes.bytes += objectSize;
+            return response;
+        }
+    }
+
+    @Benchmark
+    public byte[] getAsBytes(Bytes bytes) {
+        byte[] content = s3client.getObjectAsBytes(getOb).asByteArrayUnsafe();
+        bytes.bytes += content.length;
+        return content;
+    }
+
+    @Benchmark
+    public GetObjectResponse getToFile(DownloadFile file, Bytes bytes) throws IOException {
+        // The transformer does not overwrite an existing file
+        Files.deleteIfExists(file.path);
+        GetObjectResponse response = s3client.getObject(getOb, ResponseTransformer.toFile(file.path));
+        bytes.bytes += response.contentLength();
+        return response;
+    }
+
+    @Benchmark
+    public long getToStream(DownloadFile file, Bytes bytes) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = s3client.getObject(getOb)) {
+            long length = Files.copy(in, file.path, StandardCopyOption.REPLACE_EXISTING);
+            bytes.bytes += length;
+            return length;
+        }
+    }
+
+    /**
+     * File downloaded, one per thread
+     */
+    @State(Scope.Thread)
+    public static class DownloadFile {
+        private Path path;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            path = Files.createTempFile("s3benchmark", ".download");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Bytes transferred, reported by JMH as bytes per second next to the operations
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
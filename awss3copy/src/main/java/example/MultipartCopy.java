@@ -0,0 +1,201 @@
+/**
+ * MultipartCopy class with methods for copying a big object between S3 buckets
+ * using a multipart upload whose parts are copied server side with UploadPartCopy.
+ * The byte ranges of the source object are copied concurrently from a bounded
+ * pool of workers, so objects bigger than the 5 GB limit of CopyObject can be copied
+ * and big objects are not copied at the speed of a single stream.
+ */
+
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import example.common.S3Keys;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+
+
+public class MultipartCopy {
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;          // S3 minimum part size (except the last one)
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;   // S3 maximum part size
+    public static final int  MAX_PARTS     = 10000;                     // S3 maximum number of parts
+
+    private final S3Client s3client;
+    private final long partSize;
+    private final int threads;
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    public MultipartCopy(S3Client s3client, long partSize, int threads) {
+        this.s3client = s3client;
+        this.partSize = Math.min(Math.max(partSize, MIN_PART_SIZE), MAX_PART_SIZE);
+        this.threads  = Math.max(threads, 1);
+    }
+
+    /**
+     * Return the number of bytes copied so far
+     */
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    /**
+     * Copy an object as a multipart upload and return the response of the completed upload.
+     * The head of the source object gives its size, its ETag and the metadata copied to the destination.
+     * Every part is copied only if the source object still has the same ETag.
+     * The multipart upload is aborted if any part fails.
+     */
+    public CompleteMultipartUploadResponse copy(String sourceBucketName, String sourceKey, HeadObjectResponse head,
+                                                String destinationBucketName, String destinationKey) {
+        long objectSize = head.contentLength();
+        long size = partSizeFor(objectSize);
+        int partCount = partCount(objectSize, size);
+
+        System.out.println("Parts:      " + partCount + " x " + size + " bytes, " + threads + " threads");
+
+        String uploadId = createUpload(head, destinationBucketName, destinationKey);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CompletedPart>> futures = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                final int partNumber = i + 1;
+                final long offset = i * size;
+                final long length = Math.min(size, objectSize - offset);
+                futures.add(pool.submit(() -> copyPart(sourceBucketName, sourceKey, head.eTag(),
+                        destinationBucketName, destinationKey, uploadId, partNumber, offset, length)));
+            }
+
+            List<CompletedPart> parts = new ArrayList<>(partCount);
+            for (Future<CompletedPart> future : futures) {
+                parts.add(future.get());
+            }
+
+            return complete(destinationBucketName, destinationKey, uploadId, parts);
+
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            pool.shutdownNow();
+            abort(destinationBucketName, destinationKey, uploadId);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw unwrap(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Return the part size to use for an object, so that the copy fits in the maximum number of parts
+     */
+    long partSizeFor(long objectSize) {
+        long minSize = (objectSize + MAX_PARTS - 1) / MAX_PARTS;
+        return Math.max(partSize, minSize);
+    }
+
+    /**
+     * Return the number of parts of an object copied with the given part size
+     */
+    static int partCount(long objectSize, long size) {
+        return (int) Math.max(1, (objectSize + size - 1) / size);
+    }
+
+    /**
+     * Start the multipart upload of the destination object with the headers and metadata of the source.
+     * Unlike CopyObject, a multipart upload does not copy them by itself.
+     */
+    String createUpload(HeadObjectResponse head, String destinationBucketName, String destinationKey) {
+        CreateMultipartUploadRequest createReq = CreateMultipartUploadRequest.builder()
+                .bucket(destinationBucketName)
+                .key(destinationKey)
+                .metadata(head.metadata())
+                .contentType(head.contentType())
+                .contentEncoding(head.contentEncoding())
+                .contentDisposition(head.contentDisposition())
+                .contentLanguage(head.contentLanguage())
+                .cacheControl(head.cacheControl())
+                .expires(head.expires())
+                .build();
+        return s3client.createMultipartUpload(createReq).uploadId();
+    }
+
+    /**
+     * Copy one byte range of the source object as a part of the upload
+     */
+    CompletedPart copyPart(String sourceBucketName, String sourceKey, String sourceETag,
+                           String destinationBucketName, String destinationKey, String uploadId,
+                           int partNumber, long offset, long length) {
+        UploadPartCopyRequest partReq = UploadPartCopyRequest.builder()
+                .copySource(S3Keys.copySource(sourceBucketName, sourceKey))
+                .copySourceRange("bytes=" + offset + "-" + (offset + length - 1))
+                .copySourceIfMatch(sourceETag)
+                .bucket(destinationBucketName)
+                .key(destinationKey)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build();
+
+        UploadPartCopyResponse partRes = s3client.uploadPartCopy(partReq);
+        bytesCopied.addAndGet(length);
+
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(partRes.copyPartResult().eTag())
+                .build();
+    }
+
+    /**
+     * Complete a multipart upload with its parts in order
+     */
+    CompleteMultipartUploadResponse complete(String destinationBucketName, String destinationKey,
+                                             String uploadId, List<CompletedPart> parts) {
+        CompleteMultipartUploadRequest completeReq = CompleteMultipartUploadRequest.builder()
+                .bucket(destinationBucketName)
+                .key(destinationKey)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build();
+        return s3client.completeMultipartUpload(completeReq);
+    }
+
+    /**
+     * Abort a multipart upload so that the copied parts are not stored
+     */
+    void abort(String destinationBucketName, String destinationKey, String uploadId) {
+        try {
+            s3client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(destinationBucketName)
+                    .key(destinationKey)
+                    .uploadId(uploadId)
+                    .build());
+            System.out.println("Multipart copy aborted");
+        } catch (SdkException e) {
+            System.out.println("Multipart copy could not be aborted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the exception that caused a part to fail
+     */
+    private static RuntimeException unwrap(Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return SdkClientException.create("Multipart copy failed: " + cause, cause);
+    }
+}
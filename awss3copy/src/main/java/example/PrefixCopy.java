@@ -0,0 +1,229 @@
+/**
+ * PrefixCopy class with methods for copying all the objects under a key prefix
+ * from a S3 bucket to another S3 bucket.
+ * The source listing is streamed page by page into a fixed pool of workers, which bounds
+ * the number of blocking S3 requests in flight. Small objects are copied with a single
+ * CopyObject. The UploadPartCopy requests of a big object are shared out: the worker of the
+ * object queues helpers that take parts as they become free, and copies parts itself
+ * meanwhile, so a huge object does not keep a single worker busy while the others wait.
+ */
+
+package example;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import example.common.S3Keys;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+
+public class PrefixCopy {
+    private final S3Client s3client;
+    private final MultipartCopy multipartCopy;
+    private final long multipartThreshold;
+    private final int threads;
+
+    private final AtomicLong copiedObjects = new AtomicLong();
+    private final AtomicLong copiedBytes   = new AtomicLong();
+    private final AtomicLong failedObjects = new AtomicLong();
+
+    /**
+     * Create a prefix copy.
+     * Objects bigger than the multipart threshold are copied in parts with the given MultipartCopy.
+     */
+    public PrefixCopy(S3Client s3client, MultipartCopy multipartCopy, long multipartThreshold, int threads) {
+        this.s3client           = s3client;
+        this.multipartCopy      = multipartCopy;
+        this.multipartThreshold = multipartThreshold;
+        this.threads            = Math.max(threads, 1);
+    }
+
+    public long getCopiedObjects() {
+        return copiedObjects.get();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    public long getFailedObjects() {
+        return failedObjects.get();
+    }
+
+    /**
+     * Copy all the objects whose key starts with the prefix, keeping the same keys in the destination bucket
+     */
+    public void copy(String sourceBucketName, String prefix, String destinationBucketName)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Limit the objects waiting for a worker, so the listing does not run too far ahead
+        int maxPending = threads * 4;
+        Semaphore pending = new Semaphore(maxPending);
+
+        try {
+            ListObjectsV2Request listReq = ListObjectsV2Request.builder()
+                    .bucket(sourceBucketName)
+                    .prefix(prefix)
+                    .build();
+
+            for (ListObjectsV2Response page : s3client.listObjectsV2Paginator(listReq)) {
+                for (S3Object object : page.contents()) {
+                    pending.acquire();
+                    pool.execute(() -> copy(pool, sourceBucketName, object, destinationBucketName, pending));
+                }
+            }
+
+            // Wait for the objects in flight, their workers may still queue helpers for their parts
+            pending.acquire(maxPending);
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Copy one object of the listing
+     */
+    private void copy(ExecutorService pool, String sourceBucketName, S3Object object, String destinationBucketName,
+                      Semaphore pending) {
+        try {
+            if (object.size() > multipartThreshold) {
+                copyInParts(pool, sourceBucketName, object.key(), destinationBucketName);
+            } else {
+                copyObject(sourceBucketName, object, destinationBucketName);
+            }
+            copiedObjects.incrementAndGet();
+            copiedBytes.addAndGet(object.size());
+            System.out.println("Copied: " + object.key());
+        } catch (SdkException e) {
+            failedObjects.incrementAndGet();
+            System.out.println("Error copying \"" + object.key() + "\": " + e.getMessage());
+        } finally {
+            pending.release();
+        }
+    }
+
+    /**
+     * Copy a big object in parts, with the help of the workers that become free
+     */
+    private void copyInParts(ExecutorService pool, String sourceBucketName, String key,
+                             String destinationBucketName) {
+        // The listing does not return the headers and metadata that the multipart upload must set
+        HeadObjectResponse head = s3client.headObject(HeadObjectRequest.builder()
+                .bucket(sourceBucketName)
+                .key(key)
+                .build());
+
+        long objectSize = head.contentLength();
+        long size = multipartCopy.partSizeFor(objectSize);
+        int partCount = MultipartCopy.partCount(objectSize, size);
+
+        String uploadId = multipartCopy.createUpload(head, destinationBucketName, key);
+        try {
+            PartsCopy copy = new PartsCopy(sourceBucketName, key, head.eTag(), destinationBucketName,
+                    uploadId, objectSize, size, partCount);
+
+            // The helpers wait in the queue of the pool, a helper that starts late finds no part left
+            for (int i = 1; i < Math.min(partCount, threads); i++) {
+                pool.execute(() -> copyParts(copy));
+            }
+            copyParts(copy);
+            try {
+                copy.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw SdkClientException.create("Interrupted while copying the parts of " + key, e);
+            }
+            if (copy.error.get() != null) {
+                throw copy.error.get();
+            }
+            multipartCopy.complete(destinationBucketName, key, uploadId, Arrays.asList(copy.parts));
+
+        } catch (RuntimeException e) {
+            multipartCopy.abort(destinationBucketName, key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the parts of a big object not taken yet, until there are none left.
+     * After a part fails the other parts are skipped.
+     */
+    private void copyParts(PartsCopy copy) {
+        int i;
+        while ((i = copy.nextPart.getAndIncrement()) < copy.partCount) {
+            try {
+                if (copy.error.get() == null) {
+                    long offset = i * copy.partSize;
+                    copy.parts[i] = multipartCopy.copyPart(copy.sourceBucketName, copy.key, copy.sourceETag,
+                            copy.destinationBucketName, copy.key, copy.uploadId, i + 1,
+                            offset, Math.min(copy.partSize, copy.objectSize - offset));
+                }
+            } catch (RuntimeException e) {
+                copy.error.compareAndSet(null, e);
+            } finally {
+                copy.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Copy a small object with a single CopyObject
+     */
+    private void copyObject(String sourceBucketName, S3Object object, String destinationBucketName) {
+        s3client.copyObject(CopyObjectRequest.builder()
+                .copySource(S3Keys.copySource(sourceBucketName, object.key()))
+                .copySourceIfMatch(object.eTag())
+                .destinationBucket(destinationBucketName)
+                .destinationKey(object.key())
+                .build());
+    }
+
+
+    /**
+     * State of the copy of the parts of a big object, shared by the workers that copy them
+     */
+    private static class PartsCopy {
+        final String sourceBucketName;
+        final String key;
+        final String sourceETag;
+        final String destinationBucketName;
+        final String uploadId;
+        final long objectSize;
+        final long partSize;
+        final int partCount;
+        final CompletedPart[] parts;
+        final AtomicInteger nextPart = new AtomicInteger();
+        final CountDownLatch done;
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+        PartsCopy(String sourceBucketName, String key, String sourceETag, String destinationBucketName,
+                  String uploadId, long objectSize, long partSize, int partCount) {
+            this.sourceBucketName      = sourceBucketName;
+            this.key                   = key;
+            this.sourceETag            = sourceETag;
+            this.destinationBucketName = destinationBucketName;
+            this.uploadId              = uploadId;
+            this.objectSize            = objectSize;
+            this.partSize              = partSize;
+            this.partCount             = partCount;
+            this.parts                 = new CompletedPart[partCount];
+            this.done                  = new CountDownLatch(partCount);
+        }
+    }
+}
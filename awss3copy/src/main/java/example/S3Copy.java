@@ -5,35 +5,49 @@
  * SOURCE_BUCKET      = Source bucket name
  * SOURCE_OBJECT      = Source object name
  * DESTINATION_BUCKET = Destination bucket name
+ * Optional parameters:
+ * --prefix           = Copy all the objects whose key starts with SOURCE_OBJECT
+ * --multipart        = Force a multipart copy
+ * --part-size <MB>   = Part size in MB for multipart copies
+ * --threads <N>      = Number of parts (or objects in prefix mode) copied concurrently
+ * Objects bigger than the multipart threshold are always copied as a multipart copy,
+ * with parts copied server side in parallel (CopyObject is limited to 5 GB).
  */
 
 package example;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import example.common.AwsClients;
+import example.common.S3Objects;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
-import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 
 public class S3Copy {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final long MULTIPART_THRESHOLD = 100L * 1024 * 1024; // Objects bigger than this use multipart
+    private static final long DEFAULT_PART_SIZE   = 128L * 1024 * 1024; // Default part size
+    private static final int  DEFAULT_THREADS     = 16;                 // Default number of concurrent parts
 
     public static void main(String[] args) {
         String sourceBucketName;       // Source bucket name
         String sourceKey;              // Source key
         String destinationBucketName;  // Destination bucket name
         String destinationKey;         // Destination key
+        boolean prefixMode = false;    // Copy all the objects under a prefix
+        boolean multipart = false;     // Force a multipart copy
+        long partSize = DEFAULT_PART_SIZE;
+        int threads = DEFAULT_THREADS;
 
         if (args.length < 3) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3copy.jar " +
-                    "<SOURCE_BUCKET> <SOURCE_OBJECT> <DESTINATION_BUCKET>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
@@ -42,37 +56,77 @@ public class S3Copy {
         destinationBucketName = args[2];
         destinationKey        = sourceKey;
 
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--prefix":
+                        prefixMode = true;
+                        break;
+                    case "--multipart":
+                        multipart = true;
+                        break;
+                    case "--part-size":
+                        partSize = Long.parseLong(args[++i]) * 1024 * 1024;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        System.out.println("Unknown parameter: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid parameter value.");
+            printUsage();
+            System.exit(1);
+        }
+
         System.out.println("From - bucket: " + sourceBucketName);
-        System.out.println("From - object: " + sourceKey);
+        System.out.println((prefixMode ? "From - prefix: " : "From - object: ") + sourceKey);
         System.out.println("To   - bucket: " + destinationBucketName);
-        System.out.println("To   - object: " + destinationKey);
+        if (!prefixMode) {
+            System.out.println("To   - object: " + destinationKey);
+        }
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
-        String encodedUrl = null;
-        try {
-            encodedUrl = URLEncoder.encode(sourceBucketName + "/" + sourceKey, StandardCharsets.UTF_8.toString());
-        } catch (UnsupportedEncodingException e) {
-            System.out.println("URL could not be encoded: " + e.getMessage());
+        if (prefixMode) {
+            copyPrefix(s3client, sourceBucketName, sourceKey, destinationBucketName, multipart, partSize, threads);
+            return;
         }
 
         try {
-            System.out.println("Copying object ...");
-
-            // Copy object
-            CopyObjectRequest copyReq = CopyObjectRequest.builder()
-                    .copySource(encodedUrl)
-                    .destinationBucket(destinationBucketName)
-                    .destinationKey(destinationKey)
+            // Get the size of the source object
+            HeadObjectRequest headReq = HeadObjectRequest.builder()
+                    .bucket(sourceBucketName)
+                    .key(sourceKey)
                     .build();
+            HeadObjectResponse head = s3client.headObject(headReq);
+
+            long start = System.nanoTime();
+            if (multipart || head.contentLength() > MULTIPART_THRESHOLD) {
+                System.out.println("Copying object as a multipart copy ...");
 
-            CopyObjectResponse copyRes = s3client.copyObject(copyReq);
-            System.out.println("Copied");
-            System.out.println("Tag information: " + copyRes.copyObjectResult().eTag());
-            System.out.println("Last Modified: " + copyRes.copyObjectResult().lastModified());
+                // Copy object in parts
+                MultipartCopy multipartCopy = new MultipartCopy(s3client, partSize, threads);
+                CompleteMultipartUploadResponse copyRes = multipartCopy.copy(sourceBucketName, sourceKey, head,
+                        destinationBucketName, destinationKey);
+                System.out.println("Copied");
+                System.out.println("Tag information: " + copyRes.eTag());
+            } else {
+                System.out.println("Copying object ...");
+
+                // Copy object
+                CopyObjectResponse copyRes = S3Objects.copyObject(s3client, sourceBucketName, sourceKey,
+                        destinationBucketName, destinationKey);
+                System.out.println("Copied");
+                System.out.println("Tag information: " + copyRes.copyObjectResult().eTag());
+                System.out.println("Last Modified: " + copyRes.copyObjectResult().lastModified());
+            }
+            printThroughput(head.contentLength(), System.nanoTime() - start);
 
         } catch (S3Exception e) {
             if (e.statusCode() == 404) {
@@ -102,6 +156,55 @@ public class S3Copy {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + ace.getMessage());
         }
-        s3client.close();
+    }
+
+    /**
+     * Copy all the objects under a prefix, printing a summary at the end
+     */
+    private static void copyPrefix(S3Client s3client, String sourceBucketName, String prefix,
+                                   String destinationBucketName, boolean multipart, long partSize, int threads) {
+        try {
+            System.out.println("Copying objects ...");
+
+            MultipartCopy multipartCopy = new MultipartCopy(s3client, partSize, threads);
+            PrefixCopy prefixCopy = new PrefixCopy(s3client, multipartCopy,
+                    multipart ? 0 : MULTIPART_THRESHOLD, threads);
+
+            long start = System.nanoTime();
+            prefixCopy.copy(sourceBucketName, prefix, destinationBucketName);
+
+            System.out.println("Copied objects: " + prefixCopy.getCopiedObjects());
+            System.out.println("Failed objects: " + prefixCopy.getFailedObjects());
+            printThroughput(prefixCopy.getCopiedBytes(), System.nanoTime() - start);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted");
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                System.out.println("Error: Bucket \"" + sourceBucketName + "\" does not exist!!");
+            }
+            System.out.println("S3Exception: " + e);
+        } catch (SdkException e) {
+            System.out.println("Error listing objects: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3copy.jar " +
+                "<SOURCE_BUCKET> <SOURCE_OBJECT> <DESTINATION_BUCKET> " +
+                "[--prefix] [--multipart] [--part-size <MB>] [--threads <N>]");
+    }
+
+    /**
+     * Print the bytes copied and the throughput
+     */
+    private static void printThroughput(long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        System.out.printf("Copied: %d bytes in %.2f s (%.2f MB/s)\n",
+                bytes, seconds, bytes / seconds / (1024 * 1024));
     }
 }
@@ -7,6 +7,7 @@
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.waiters.WaiterResponse;
@@ -37,10 +38,8 @@ public class S3Create {
 
         System.out.println("Bucket name: " + bucketName);
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
             System.out.println("Creating bucket ...");
@@ -92,6 +91,5 @@ public class S3Create {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        s3client.close();
     }
 }
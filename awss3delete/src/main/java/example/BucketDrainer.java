@@ -0,0 +1,61 @@
+/**
+ * BucketDrainer class with methods for deleting all the objects of a S3 bucket.
+ * The object versions and delete markers of the bucket are listed page by page
+ * and deleted with the shared BulkDelete, in batches of up to 1000 keys. Several DeleteObjects
+ * batches run concurrently while the listing continues.
+ */
+
+package example;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+import example.common.BulkDelete;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+
+public class BucketDrainer {
+    private static final int MAX_ERRORS_SHOWN = 10;  // Number of per-key errors printed
+    private static final int PROGRESS_BATCHES = 100; // Batches between progress messages
+
+    private final S3Client s3client;
+    private final BulkDelete bulkDelete;
+
+    public BucketDrainer(S3Client s3client, int threads) {
+        this.s3client   = s3client;
+        this.bulkDelete = new BulkDelete(s3client, threads);
+        bulkDelete.setMaxErrorsShown(MAX_ERRORS_SHOWN);
+        bulkDelete.setProgressBatches(PROGRESS_BATCHES);
+    }
+
+    public long getDeleted() {
+        return bulkDelete.getDeleted();
+    }
+
+    public long getFailed() {
+        return bulkDelete.getFailed();
+    }
+
+    /**
+     * Delete all the object versions and delete markers of a bucket.
+     * For a bucket without versioning, every object is listed as a single version.
+     */
+    public void drain(String bucketName) throws InterruptedException {
+        ListObjectVersionsRequest listReq = ListObjectVersionsRequest.builder()
+                .bucket(bucketName)
+                .maxKeys(BulkDelete.MAX_BATCH_SIZE)
+                .build();
+
+        // The pages are listed as the batches are deleted
+        Iterator<ObjectIdentifier> objects = s3client.listObjectVersionsPaginator(listReq).stream()
+                .flatMap(page -> Stream.concat(
+                        page.versions().stream().map(version -> ObjectIdentifier.builder()
+                                .key(version.key()).versionId(version.versionId()).build()),
+                        page.deleteMarkers().stream().map(marker -> ObjectIdentifier.builder()
+                                .key(marker.key()).versionId(marker.versionId()).build())))
+                .iterator();
+
+        bulkDelete.deleteObjects(bucketName, objects);
+    }
+}
@@ -3,10 +3,14 @@
  * Delete a S3 bucket.
  * You must provide 1 parameter:
  * BUCKET_NAME = Name of the bucket
+ * Optional parameters:
+ * --force       = Delete all the objects (and object versions) of the bucket before deleting it
+ * --threads <N> = Number of DeleteObjects batches run concurrently with --force
  */
 
 package example;
 
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
@@ -17,26 +21,54 @@ import software.amazon.awssdk.services.s3.model.DeleteBucketRequest;
 
 public class S3Delete {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final int DEFAULT_THREADS = 8;                     // Default number of concurrent batches
 
     public static void main(String[] args) {
+        boolean force = false;          // Empty the bucket before deleting it
+        int threads = DEFAULT_THREADS;  // Number of concurrent batches
 
         if (args.length < 1) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3delete.jar <BUCKET_NAME>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
         // The name for the bucket
         String bucketName = args[0];
 
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--force")) {
+                force = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Invalid parameter: " + args[i]);
+                printUsage();
+                System.exit(1);
+            }
+        }
+
         System.out.println("Bucket name: " + bucketName);
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
+            if (force) {
+                System.out.println("Deleting all the objects of the bucket ...");
+
+                BucketDrainer drainer = new BucketDrainer(s3client, threads);
+                long start = System.nanoTime();
+                drainer.drain(bucketName);
+                double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+                System.out.printf("Deleted %d objects in %.2f s (%.0f objects/s)\n",
+                        drainer.getDeleted(), seconds, drainer.getDeleted() / seconds);
+                if (drainer.getFailed() > 0) {
+                    System.out.println("Error: " + drainer.getFailed() + " objects could not be deleted!!");
+                }
+            }
+
             System.out.println("Deleting bucket ...");
 
             // Delete bucket
@@ -45,11 +77,17 @@ public class S3Delete {
             
             System.out.println("Deleted");
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted");
         } catch (S3Exception e) {
             if (e.statusCode() == 404) {
                 System.out.println("Error: Bucket does not exist!!");
             }else if (e.statusCode() == 409) {
                 System.out.println("Error: The bucket you tried to delete is not empty!!");
+                if (!force) {
+                    System.out.println("Use --force to delete all the objects of the bucket first.");
+                }
             } else {
                 System.out.println("S3Exception: " + e);
                 System.out.println("HTTP Status Code:  " + e.statusCode());
@@ -73,6 +111,12 @@ public class S3Delete {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        s3client.close();
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3delete.jar <BUCKET_NAME> [--force] [--threads <N>]");
     }
 }
@@ -4,62 +4,137 @@
  * You must provide 2 parameters:
  * BUCKET_NAME = Name of the bucket
  * OBJECT_NAME = Name of the object in the bucket
+ * Instead of OBJECT_NAME, many objects can be deleted with:
+ * --keys-file <FILE> = File with one key per line ("-" reads the keys from the standard input)
+ * --prefix <PREFIX>  = Delete all the objects whose key starts with the prefix
+ * --threads <N>      = Number of DeleteObjects batches (up to 1000 keys each) run concurrently
  */
 
 package example;
 
-import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import example.common.AwsClients;
+import example.common.BulkDelete;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
-import software.amazon.awssdk.services.s3.model.Delete;
-import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
-import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
 
 public class S3DeleteObject {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
 
+    private static final int DEFAULT_THREADS = 8;                     // Default number of concurrent batches
+
     public static void main(String[] args) {
+        String keyName = null;        // Name of a single object
+        String keysFileName = null;   // File with one key per line
+        String prefix = null;         // Prefix of the objects to delete
+        int threads = DEFAULT_THREADS;
 
         if (args.length < 2) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3deleteobject.jar " +
-                    "<BUCKET_NAME> <OBJECT_NAME>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
         // The name for the bucket
         String bucketName = args[0];
 
-        // The name for the object
-        String keyName = args[1];
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--keys-file") && i + 1 < args.length) {
+                keysFileName = args[++i];
+            } else if (args[i].equals("--prefix") && i + 1 < args.length) {
+                prefix = args[++i];
+            } else if (args[i].equals("--threads") && i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (i == 1 && !args[i].startsWith("--")) {
+                // The name for the object
+                keyName = args[i];
+            } else {
+                System.out.println("Invalid parameter: " + args[i]);
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        if ((keyName != null ? 1 : 0) + (keysFileName != null ? 1 : 0) + (prefix != null ? 1 : 0) != 1) {
+            System.out.println("You must provide either OBJECT_NAME, --keys-file or --prefix.");
+            printUsage();
+            System.exit(1);
+        }
 
         System.out.println("Bucket name: " + bucketName);
-        System.out.println("Object name: " + keyName);
+        if (keyName != null) {
+            System.out.println("Object name: " + keyName);
+        } else if (keysFileName != null) {
+            System.out.println("Keys file:   " + keysFileName);
+        } else {
+            System.out.println("Prefix:      " + prefix);
+        }
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
+        BufferedReader keysReader = null;
         try {
-            System.out.println("Deleting object ...");
+            System.out.println(keyName != null ? "Deleting object ..." : "Deleting objects ...");
 
-            ArrayList<ObjectIdentifier> toDelete = new ArrayList<ObjectIdentifier>();
-            toDelete.add(ObjectIdentifier.builder().key(keyName).build());
+            Iterator<String> keys;
+            if (keyName != null) {
+                keys = Collections.singletonList(keyName).iterator();
+            } else if (keysFileName != null) {
+                // Stream the keys from the file or the standard input
+                keysReader = keysFileName.equals("-")
+                        ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : Files.newBufferedReader(Paths.get(keysFileName), StandardCharsets.UTF_8);
+                keys = keysReader.lines().map(S3DeleteObject::toKey).iterator();
+            } else {
+                // Stream the keys from the listing of the prefix, page by page
+                ListObjectsV2Request listReq = ListObjectsV2Request.builder()
+                        .bucket(bucketName)
+                        .prefix(prefix)
+                        .build();
+                keys = s3client.listObjectsV2Paginator(listReq).contents().stream()
+                        .map(S3Object::key)
+                        .iterator();
+            }
 
-            // Delete Object
-            DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
-                    .bucket(bucketName)
-                    .delete(Delete.builder().objects(toDelete).build())
-                    .build();
-            s3client.deleteObjects(delReq);
+            // Delete Objects, in batches of up to 1000 keys
+            BulkDelete bulkDelete = new BulkDelete(s3client, threads);
+            long start = System.nanoTime();
+            bulkDelete.delete(bucketName, keys);
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
 
-            System.out.println("Deleted");
-            
+            if (keyName != null) {
+                System.out.println(bulkDelete.getFailed() == 0 ? "Deleted" : "Error: Object could not be deleted!!");
+            } else {
+                System.out.printf("Deleted %d objects with %d requests in %.2f s (%.0f objects/s)\n",
+                        bulkDelete.getDeleted(), bulkDelete.getRequests(), seconds,
+                        bulkDelete.getDeleted() / seconds);
+                if (bulkDelete.getFailed() > 0) {
+                    System.out.println("Error: " + bulkDelete.getFailed() + " objects could not be deleted!!");
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.println("Error reading keys: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println("Error reading keys: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted");
         } catch (S3Exception e) {
             if (e.statusCode() == 404) {
                 System.out.println("Error: Bucket does not exist!!");
@@ -87,6 +162,28 @@ public class S3DeleteObject {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + ace.getMessage());
         }
-        s3client.close();
+        if (keysReader != null) {
+            try {
+                keysReader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3deleteobject.jar <BUCKET_NAME> <OBJECT_NAME>\n" +
+                "             or: java -jar s3deleteobject.jar <BUCKET_NAME> " +
+                "--keys-file <FILE> | --prefix <PREFIX> [--threads <N>]");
+    }
+
+    /**
+     * Return the key of a line of the keys file, without the end of a Windows line
+     */
+    private static String toKey(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
     }
 }
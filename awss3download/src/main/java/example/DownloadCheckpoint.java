@@ -0,0 +1,182 @@
+/**
+ * DownloadCheckpoint class with methods for keeping track of the ranges
+ * of an object that have already been downloaded to a local file.
+ * The checkpoint is stored in a small sidecar file next to the local file.
+ * It records the ETag and size of the object, the range size and one byte per range,
+ * so marking a range as done is a single positional write.
+ */
+
+package example;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+public class DownloadCheckpoint implements AutoCloseable {
+    public static final String SUFFIX = ".s3checkpoint";   // Sidecar file suffix
+    private static final int MAGIC    = 0x53334350;        // "S3CP"
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final long partSize;
+    private final boolean[] done;
+    private final long headerLength;
+
+    private DownloadCheckpoint(Path path, RandomAccessFile file, long partSize, boolean[] done, long headerLength) {
+        this.path         = path;
+        this.file         = file;
+        this.partSize     = partSize;
+        this.done         = done;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Return the path of the checkpoint of a local file
+     */
+    public static Path pathFor(Path localFile) {
+        return Paths.get(localFile.toString() + SUFFIX);
+    }
+
+    /**
+     * Open the checkpoint of a local file.
+     * An existing checkpoint is reused if it belongs to the same object (ETag and size)
+     * and the local file is still there. Otherwise a new checkpoint is created.
+     */
+    public static DownloadCheckpoint open(Path localFile, String eTag, long objectSize, long partSize)
+            throws IOException {
+        Path path = pathFor(localFile);
+
+        if (Files.exists(path)) {
+            if (Files.exists(localFile) && Files.size(localFile) == objectSize) {
+                DownloadCheckpoint checkpoint = load(path, eTag, objectSize);
+                if (checkpoint != null) {
+                    return checkpoint;
+                }
+            } else {
+                System.out.println("Local file has changed, starting over");
+            }
+            Files.delete(path);
+        }
+        return create(path, eTag, objectSize, partSize);
+    }
+
+    /**
+     * Load an existing checkpoint, or return null if it belongs to another version of the object
+     */
+    private static DownloadCheckpoint load(Path path, String eTag, long objectSize) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            if (file.readInt() != MAGIC) {
+                System.out.println("Invalid checkpoint, starting over");
+                file.close();
+                return null;
+            }
+            String storedETag = file.readUTF();
+            long storedSize   = file.readLong();
+            long partSize     = file.readLong();
+            int partCount     = file.readInt();
+
+            if (!storedETag.equals(eTag) || storedSize != objectSize) {
+                System.out.println("Object has changed (ETag " + storedETag + " -> " + eTag + "), starting over");
+                file.close();
+                return null;
+            }
+
+            long headerLength = file.getFilePointer();
+            byte[] flags = new byte[partCount];
+            file.readFully(flags);
+
+            boolean[] done = new boolean[partCount];
+            for (int i = 0; i < partCount; i++) {
+                done[i] = flags[i] != 0;
+            }
+            return new DownloadCheckpoint(path, file, partSize, done, headerLength);
+
+        } catch (IOException e) {
+            // A truncated checkpoint is useless, start over
+            file.close();
+            System.out.println("Invalid checkpoint, starting over");
+            return null;
+        }
+    }
+
+    /**
+     * Create a new checkpoint with no range downloaded
+     */
+    private static DownloadCheckpoint create(Path path, String eTag, long objectSize, long partSize)
+            throws IOException {
+        int partCount = (int) Math.max(1, (objectSize + partSize - 1) / partSize);
+
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        file.writeInt(MAGIC);
+        file.writeUTF(eTag);
+        file.writeLong(objectSize);
+        file.writeLong(partSize);
+        file.writeInt(partCount);
+        long headerLength = file.getFilePointer();
+        file.write(new byte[partCount]);
+        file.getFD().sync();
+
+        return new DownloadCheckpoint(path, file, partSize, new boolean[partCount], headerLength);
+    }
+
+    /**
+     * Return the range size recorded in the checkpoint
+     */
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Return the number of ranges
+     */
+    public int getPartCount() {
+        return done.length;
+    }
+
+    /**
+     * Return true if a range has already been downloaded
+     */
+    public synchronized boolean isDone(int part) {
+        return done[part];
+    }
+
+    /**
+     * Return the number of ranges already downloaded
+     */
+    public synchronized int getDoneCount() {
+        int count = 0;
+        for (boolean d : done) {
+            if (d) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Record that a range has been downloaded.
+     * The range must have been flushed to the local file before calling this method.
+     */
+    public synchronized void markDone(int part) throws IOException {
+        file.seek(headerLength + part);
+        file.write(1);
+        done[part] = true;
+    }
+
+    /**
+     * Delete the checkpoint once the download is complete
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
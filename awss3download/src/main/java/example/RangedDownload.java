@@ -0,0 +1,316 @@
+/**
+ * RangedDownload class with methods for downloading an object
+ * from a S3 bucket to a local file using parallel ranged GETs.
+ * The local file is preallocated and each range is written at its offset
+ * through a FileChannel, so the memory used does not depend on the size of the object.
+ * Completed ranges are recorded in a DownloadCheckpoint, so an interrupted download
+ * only fetches the missing ranges when it is restarted.
+ * A gzip compressed object can also be decompressed while its ranges arrive,
+ * keeping at most one range per worker in memory.
+ */
+
+package example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+
+public class RangedDownload {
+    public static final long MIN_PART_SIZE = 1024L * 1024;      // Minimum range size
+    private static final int WRITE_BUFFER  = 64 * 1024;         // Buffer used to stream a range
+
+    private final S3Client s3client;
+    private final long partSize;
+    private final int threads;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    public RangedDownload(S3Client s3client, long partSize, int threads) {
+        this.s3client = s3client;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.threads  = Math.max(threads, 1);
+    }
+
+    /**
+     * Return the number of bytes downloaded so far
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Describe an object with a HEAD request
+     */
+    public HeadObjectResponse head(String bucketName, String keyName) {
+        return s3client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .build());
+    }
+
+    /**
+     * Download an object to a local file fetching its ranges in parallel.
+     * The ranges are requested with the ETag of the object, so the download fails
+     * if the object changes while it is being downloaded.
+     * If a checkpoint of a previous download of the same object exists, only the missing ranges are fetched.
+     */
+    public void download(String bucketName, String keyName, HeadObjectResponse head, Path file) throws IOException {
+        long objectSize = head.contentLength();
+
+        try (DownloadCheckpoint checkpoint = DownloadCheckpoint.open(file, head.eTag(), objectSize, partSize);
+             RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long size = checkpoint.getPartSize();
+            int partCount = checkpoint.getPartCount();
+            int doneCount = checkpoint.getDoneCount();
+
+            System.out.println("Ranges:     " + partCount + " x " + size + " bytes, " + threads + " threads");
+            if (doneCount > 0) {
+                System.out.println("Resuming:   " + doneCount + " of " + partCount + " ranges already downloaded");
+            }
+
+            // Preallocate the local file
+            raf.setLength(objectSize);
+            FileChannel channel = raf.getChannel();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Long>> futures = new ArrayList<>(partCount - doneCount);
+                for (int i = 0; i < partCount; i++) {
+                    final int part = i;
+                    final long offset = i * size;
+                    final long length = Math.min(size, objectSize - offset);
+                    if (length <= 0 || checkpoint.isDone(part)) {
+                        continue;
+                    }
+                    futures.add(pool.submit(() -> {
+                        long written = downloadRange(channel, bucketName, keyName, head.eTag(), offset, length);
+                        // Make the range durable before recording it in the checkpoint
+                        channel.force(false);
+                        checkpoint.markDone(part);
+                        return written;
+                    }));
+                }
+
+                for (Future<Long> future : futures) {
+                    future.get();
+                }
+
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Download interrupted", e);
+            } finally {
+                pool.shutdown();
+            }
+
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * Download a gzip compressed object to a local file, decompressing it while its ranges arrive.
+     * The ranges are fetched in parallel, a few ahead of the one being decompressed,
+     * and they are decompressed in order. This download can not be resumed.
+     * Return the number of bytes written to the local file.
+     */
+    public long downloadDecompressed(String bucketName, String keyName, HeadObjectResponse head, Path file)
+            throws IOException {
+        long objectSize = head.contentLength();
+        if (objectSize == 0) {
+            // An empty object is not a gzip stream, it is written as an empty file
+            Files.newOutputStream(file).close();
+            return 0;
+        }
+        int partCount = (int) Math.max(1, (objectSize + partSize - 1) / partSize);
+
+        System.out.println("Ranges:     " + partCount + " x " + partSize + " bytes, " + threads +
+                " threads, decompressing");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long written = 0;
+        try (InputStream in = new GZIPInputStream(
+                    new RangeSequenceInputStream(pool, bucketName, keyName, head.eTag(), objectSize), WRITE_BUFFER);
+             OutputStream out = Files.newOutputStream(file)) {
+            byte[] buffer = new byte[WRITE_BUFFER];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return written;
+    }
+
+    /**
+     * Download one range of the object and write it at its offset in the local file
+     */
+    private long downloadRange(FileChannel channel, String bucketName, String keyName, String eTag,
+                               long offset, long length) throws IOException {
+        GetObjectRequest rangeReq = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .range("bytes=" + offset + "-" + (offset + length - 1))
+                .ifMatch(eTag)
+                .build();
+
+        long written = 0;
+        try (ResponseInputStream<GetObjectResponse> in = s3client.getObject(rangeReq)) {
+            written = writeAt(channel, in, offset);
+        }
+        if (written != length) {
+            throw new IOException("Range at offset " + offset + " returned " + written +
+                    " bytes instead of " + length);
+        }
+        return written;
+    }
+
+    /**
+     * Copy a stream to the file channel starting at a position and return the number of bytes written
+     */
+    private long writeAt(FileChannel channel, InputStream in, long position) throws IOException {
+        byte[] bytes = new byte[WRITE_BUFFER];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long written = 0;
+        int n;
+        while ((n = in.read(bytes)) != -1) {
+            buffer.clear();
+            buffer.limit(n);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, position + written);
+            }
+            bytesDownloaded.addAndGet(n);
+        }
+        return written;
+    }
+
+    /**
+     * Return the exception that caused a range to fail
+     */
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw SdkClientException.create("Ranged download failed: " + cause, cause);
+    }
+
+
+    /**
+     * InputStream over the ranges of an object, in order.
+     * The ranges are fetched by the pool, keeping one range per worker in flight ahead of the reader.
+     */
+    private class RangeSequenceInputStream extends InputStream {
+        private final ExecutorService pool;
+        private final String bucketName;
+        private final String keyName;
+        private final String eTag;
+        private final long objectSize;
+        private final Deque<Future<byte[]>> ranges = new ArrayDeque<>();
+        private long nextOffset;
+        private byte[] current = new byte[0];
+        private int position;
+
+        RangeSequenceInputStream(ExecutorService pool, String bucketName, String keyName, String eTag,
+                                 long objectSize) {
+            this.pool       = pool;
+            this.bucketName = bucketName;
+            this.keyName    = keyName;
+            this.eTag       = eTag;
+            this.objectSize = objectSize;
+            while (ranges.size() < threads && nextOffset < objectSize) {
+                fetchNext();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == current.length) {
+                if (ranges.isEmpty()) {
+                    return -1;
+                }
+                current = take(ranges.poll());
+                position = 0;
+                if (nextOffset < objectSize) {
+                    fetchNext();
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Start fetching the next range
+         */
+        private void fetchNext() {
+            final long offset = nextOffset;
+            final long length = Math.min(partSize, objectSize - offset);
+            nextOffset += length;
+
+            ranges.add(pool.submit(() -> {
+                GetObjectRequest rangeReq = GetObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(keyName)
+                        .range("bytes=" + offset + "-" + (offset + length - 1))
+                        .ifMatch(eTag)
+                        .build();
+                ResponseBytes<GetObjectResponse> bytes = s3client.getObjectAsBytes(rangeReq);
+                bytesDownloaded.addAndGet(length);
+                return bytes.asByteArrayUnsafe();
+            }));
+        }
+
+        private byte[] take(Future<byte[]> range) throws IOException {
+            try {
+                return range.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Download interrupted", e);
+            }
+        }
+    }
+}
@@ -5,36 +5,52 @@
  * BUCKET_NAME     = Bucket name
  * OBJECT_NAME     = Object file name in the bucket
  * LOCAL_FILE_NAME = Local file name
+ * Optional parameters:
+ * --parallel         = Force a parallel ranged download
+ * --gunzip           = Decompress a gzip compressed object while it is downloaded
+ * --part-size <MB>   = Range size in MB for parallel downloads
+ * --threads <N>      = Number of ranges downloaded concurrently
+ * Objects bigger than the parallel threshold are always downloaded with parallel ranged GETs.
+ * Parallel downloads keep a checkpoint file next to the local file,
+ * so an interrupted download is resumed from the missing ranges.
  */
 
 package example;
 
-import java.io.File;
-import java.io.OutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
-import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 
 public class S3Download {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final long PARALLEL_THRESHOLD = 100L * 1024 * 1024;  // Objects bigger than this use ranged GETs
+    private static final long DEFAULT_PART_SIZE  = 16L * 1024 * 1024;   // Default range size
+    private static final int  DEFAULT_THREADS    = 8;                   // Default number of concurrent ranges
 
     public static void main(String[] args) {
         String bucketName;            // Source bucket name
         String keyName;               // Key name, it is the object name
         String localFileName;         // Local file name
+        boolean parallel = false;     // Force a parallel ranged download
+        boolean gunzip = false;       // Decompress the object while it is downloaded
+        long partSize = DEFAULT_PART_SIZE;
+        int threads = DEFAULT_THREADS;
 
         if (args.length < 3) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3download.jar " +
-                    "<BUCKET_NAME> <OBJECT_NAME> <LOCAL_FILE_NAME>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
@@ -42,35 +58,72 @@ public class S3Download {
         keyName       = args[1];
         localFileName = args[2];
 
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--parallel":
+                        parallel = true;
+                        break;
+                    case "--gunzip":
+                        gunzip = true;
+                        break;
+                    case "--part-size":
+                        partSize = Long.parseLong(args[++i]) * 1024 * 1024;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        System.out.println("Unknown parameter: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid parameter value.");
+            printUsage();
+            System.exit(1);
+        }
+
         System.out.println("Bucket:     " + bucketName);
         System.out.println("Object/Key: " + keyName);
         System.out.println("Local file: " + localFileName);
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
             System.out.println("Downloading an object from a S3 to a local file ...");
 
-            GetObjectRequest objectRequest = GetObjectRequest
-                    .builder()
-                    .key(keyName)
-                    .bucket(bucketName)
-                    .build();
+            Path localFile = Paths.get(localFileName);
+            RangedDownload download = new RangedDownload(s3client, partSize, threads);
+            long start = System.nanoTime();
+
+            // Get object size and ETag
+            HeadObjectResponse head = download.head(bucketName, keyName);
 
-            // Get content object
-            ResponseBytes<GetObjectResponse> objectBytes = s3client.getObjectAsBytes(objectRequest);
-            byte[] data = objectBytes.asByteArray();
+            if (gunzip) {
+                // Fetch ranges in parallel and decompress them in order
+                long written = download.downloadDecompressed(bucketName, keyName, head, localFile);
+                System.out.printf("Decompressed: %d bytes -> %d bytes\n", head.contentLength(), written);
+            } else if (parallel || head.contentLength() > PARALLEL_THRESHOLD) {
+                // Fetch ranges in parallel and write them at their offsets
+                download.download(bucketName, keyName, head, localFile);
+            } else {
+                GetObjectRequest objectRequest = GetObjectRequest
+                        .builder()
+                        .key(keyName)
+                        .bucket(bucketName)
+                        .build();
 
-            // Write the data to a local file
-            File myFile = new File(localFileName);
-            OutputStream os = new FileOutputStream(myFile);
-            os.write(data);
-            os.close();
+                // Stream the content object to a local file
+                try (InputStream in = s3client.getObject(objectRequest)) {
+                    Files.copy(in, localFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
 
             System.out.println("Downloaded");
+            printThroughput(head.contentLength(), System.nanoTime() - start);
 
         } catch (IOException ee) {
             System.err.println(ee.getMessage());
@@ -101,6 +154,23 @@ public class S3Download {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        s3client.close();
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3download.jar " +
+                "<BUCKET_NAME> <OBJECT_NAME> <LOCAL_FILE_NAME> " +
+                "[--parallel] [--gunzip] [--part-size <MB>] [--threads <N>]");
+    }
+
+    /**
+     * Print the aggregate throughput of a download
+     */
+    private static void printThroughput(long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        System.out.printf("Transferred: %d bytes in %.2f s (%.2f MB/s)\n",
+                bytes, seconds, bytes / seconds / (1024 * 1024));
     }
 }
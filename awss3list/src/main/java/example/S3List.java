@@ -1,93 +1,229 @@
 /**
  * S3List is an example that handles S3 buckets on AWS.
  * List information about the objects in a S3 bucket.
+ * The objects are written page by page while they are listed, so the memory used
+ * does not depend on the number of objects in the bucket.
  * You must provide 1 parameter:
  * BUCKET_NAME     = Bucket name
+ * Optional parameters:
+ * --format <FORMAT> = Output format: text (default), ndjson or csv
+ * With the ndjson and csv formats the messages and errors are written to the standard error,
+ * so they do not corrupt the output.
  */
 
 package example;
 
-import java.util.List;
-import java.util.ListIterator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 
 public class S3List {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final int OUTPUT_BUFFER = 64 * 1024;               // Output buffer size
+    private static final String FORMAT_TEXT   = "text";
+    private static final String FORMAT_NDJSON = "ndjson";
+    private static final String FORMAT_CSV    = "csv";
 
     public static void main(String[] args) {
 
-        String bucketName;  // Bucket name
+        String bucketName;            // Bucket name
+        String format = FORMAT_TEXT;  // Output format
 
         if (args.length < 1) {
             System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3list.jar <BUCKET_NAME>");
+                    "Proper Usage is: java -jar s3list.jar <BUCKET_NAME> [--format text|ndjson|csv]");
             System.exit(1);
         }
 
         // The name for the bucket
         bucketName = args[0];
 
-        System.out.println("Bucket name: " + bucketName);
+        if (args.length == 3 && args[1].equals("--format") &&
+                (args[2].equals(FORMAT_TEXT) || args[2].equals(FORMAT_NDJSON) || args[2].equals(FORMAT_CSV))) {
+            format = args[2];
+        } else if (args.length != 1) {
+            System.out.println("Invalid parameters.\n" +
+                    "Proper Usage is: java -jar s3list.jar <BUCKET_NAME> [--format text|ndjson|csv]");
+            System.exit(1);
+        }
+
+        // Machine readable formats keep the standard output for the objects only
+        PrintStream log = format.equals(FORMAT_TEXT) ? System.out : System.err;
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        log.println("Bucket name: " + bucketName);
+
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
-            System.out.println("Listing objects ...");
-            
-            ListObjectsRequest listObjects = ListObjectsRequest
+            log.println("Listing objects ...");
+
+            ListObjectsV2Request listObjects = ListObjectsV2Request
                     .builder()
                     .bucket(bucketName)
+                    .fetchOwner(format.equals(FORMAT_TEXT))
                     .build();
 
-            ListObjectsResponse res = s3client.listObjects(listObjects);
-            List<S3Object> objects = res.contents();
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(System.out, StandardCharsets.UTF_8), OUTPUT_BUFFER);
 
-            for (ListIterator iterVals = objects.listIterator(); iterVals.hasNext(); ) {
-                S3Object myValue = (S3Object) iterVals.next();
-                System.out.println(" - " + myValue.key() +
-                        " (size = " + myValue.size() + " bytes)" +
-                        " (owner = " + myValue.owner());
+            if (format.equals(FORMAT_CSV)) {
+                out.write("key,size,last_modified,etag,storage_class\n");
             }
 
-            System.out.println("Listed");
+            long count = listObjects(s3client, listObjects, out, format);
+
+            log.println("Listed " + count + " objects");
 
+        } catch (IOException e) {
+            log.println("Error writing output: " + e.getMessage());
         } catch (S3Exception e) {
             if (e.statusCode() == 404) {
-                System.out.println("Error: Bucket does not exist!!");
+                log.println("Error: Bucket does not exist!!");
             } else {
-                System.out.println("S3Exception: " + e);
-                System.out.println("HTTP Status Code:  " + e.statusCode());
+                log.println("S3Exception: " + e);
+                log.println("HTTP Status Code:  " + e.statusCode());
             }
         } catch (AwsServiceException ase) {
-            System.out.println("Caught an AmazonServiceException, " +
+            log.println("Caught an AmazonServiceException, " +
                     "which means your request made it " +
                     "to Amazon S3, but was rejected with an error response " +
                     "for some reason.");
-            System.out.println("Error Message:     " + ase.getMessage());
-            System.out.println("HTTP Status Code:  " + ase.statusCode());
-            System.out.println("AWS Service Name:  " + ase.awsErrorDetails().serviceName());
-            System.out.println("AWS Error Code:    " + ase.awsErrorDetails().errorCode());
-            System.out.println("AWS Error Message: " + ase.awsErrorDetails().errorMessage());
-            System.out.println("Request ID:        " + ase.requestId());
+            log.println("Error Message:     " + ase.getMessage());
+            log.println("HTTP Status Code:  " + ase.statusCode());
+            log.println("AWS Service Name:  " + ase.awsErrorDetails().serviceName());
+            log.println("AWS Error Code:    " + ase.awsErrorDetails().errorCode());
+            log.println("AWS Error Message: " + ase.awsErrorDetails().errorMessage());
+            log.println("Request ID:        " + ase.requestId());
         } catch (SdkException ace) {
-            System.out.println("Caught an AmazonClientException, " +
+            log.println("Caught an AmazonClientException, " +
                     "which means the client encountered " +
                     "an internal error while trying to communicate" +
                     " with S3, " +
                     "such as not being able to access the network.");
-            System.out.println("Error Message: " + ace.getMessage());
+            log.println("Error Message: " + ace.getMessage());
+        }
+    }
+
+    /**
+     * List the objects of a request page by page and return their number.
+     * Each page is written as soon as it arrives, the paginator requests the next page when it is needed.
+     */
+    private static long listObjects(S3Client s3client, ListObjectsV2Request listObjects, Writer out, String format)
+            throws IOException {
+        long count = 0;
+        for (ListObjectsV2Response page : s3client.listObjectsV2Paginator(listObjects)) {
+            for (S3Object object : page.contents()) {
+                writeObject(out, format, object);
+                count++;
+            }
+            out.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Write an object in the output format
+     */
+    private static void writeObject(Writer out, String format, S3Object object) throws IOException {
+        switch (format) {
+            case FORMAT_NDJSON:
+                out.write("{\"key\":");
+                writeJsonString(out, object.key());
+                out.write(",\"size\":");
+                out.write(String.valueOf(object.size()));
+                out.write(",\"last_modified\":");
+                writeJsonString(out, String.valueOf(object.lastModified()));
+                out.write(",\"etag\":");
+                writeJsonString(out, object.eTag());
+                out.write(",\"storage_class\":");
+                writeJsonString(out, object.storageClassAsString());
+                out.write("}\n");
+                break;
+            case FORMAT_CSV:
+                writeCsvField(out, object.key());
+                out.write(',');
+                out.write(String.valueOf(object.size()));
+                out.write(',');
+                writeCsvField(out, String.valueOf(object.lastModified()));
+                out.write(',');
+                writeCsvField(out, object.eTag());
+                out.write(',');
+                writeCsvField(out, object.storageClassAsString());
+                out.write('\n');
+                break;
+            default:
+                out.write(" - " + object.key() +
+                        " (size = " + object.size() + " bytes)" +
+                        " (owner = " + object.owner() + "\n");
+        }
+    }
+
+    /**
+     * Write a JSON string, escaping quotes, backslashes and control characters
+     */
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Write a CSV field, quoting it if it contains a comma, a quote or a line break
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+                value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            out.write(value);
+            return;
         }
-        s3client.close();
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
     }
 }
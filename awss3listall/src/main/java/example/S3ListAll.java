@@ -1,12 +1,27 @@
 /**
  * S3ListAll is an example that handles S3 buckets on AWS.
  * List information about all S3 buckets and the objects that they contain.
+ * The buckets are listed concurrently and all the pages of objects of each bucket are listed.
+ * The objects of each bucket are written to a temporary file while it is listed, and the files
+ * are printed in the order of the buckets, so the memory used does not depend on the size of the buckets.
+ * Optional parameters:
+ * --threads <N> = Number of buckets listed concurrently
  */
 
 package example;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
@@ -14,21 +29,28 @@ import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.ListBucketsRequest;
 import software.amazon.awssdk.services.s3.model.ListBucketsResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.Bucket;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 
 public class S3ListAll {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final int DEFAULT_THREADS = 8;                     // Default number of concurrent buckets
 
     public static void main(String[] args) {
+        int threads = DEFAULT_THREADS;  // Number of buckets listed concurrently
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        if (args.length == 2 && args[0].equals("--threads") && args[1].matches("[0-9]+")) {
+            threads = Math.max(Integer.parseInt(args[1]), 1);
+        } else if (args.length > 0) {
+            System.out.println("Invalid parameters.\n" +
+                    "Proper Usage is: java -jar s3listall.jar [--threads <N>]");
+            System.exit(1);
+        }
+
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
             System.out.println("Listing S3 buckets and objects ...");
@@ -38,22 +60,34 @@ public class S3ListAll {
             ListBucketsResponse listBucketsResponse = s3client.listBuckets(listBucketsRequest);
             List<Bucket> buckets = listBucketsResponse.buckets();
             System.out.println("Your Amazon S3 buckets:");
-            String bucketName;
+
+            // List the objects of each bucket concurrently
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<Path>> futures = new ArrayList<>(buckets.size());
             for (Bucket b : buckets) {
-                bucketName = b.name();
-                System.out.println("* Bucket: " + bucketName);
-                ListObjectsRequest listObjects = ListObjectsRequest
-                        .builder()
-                        .bucket(bucketName)
-                        .build();
-                ListObjectsResponse res = s3client.listObjects(listObjects);
-                List<S3Object> objects = res.contents();
-                // List Objects
-                for (ListIterator iterVals = objects.listIterator(); iterVals.hasNext(); ) {
-                    S3Object myValue = (S3Object) iterVals.next();
-                    System.out.println("  - Object: " + myValue.key() +
-                            " (size = " + myValue.size() + " bytes)" +
-                            " (owner = " + myValue.owner());
+                futures.add(pool.submit(() -> listBucket(s3client, b.name())));
+            }
+            pool.shutdown();
+
+            // Print the listing of each bucket in order, as soon as it is complete
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    Path listing = futures.get(i).get();
+                    try {
+                        Files.copy(listing, System.out);
+                        System.out.flush();
+                    } finally {
+                        Files.deleteIfExists(listing);
+                    }
+                } catch (ExecutionException | IOException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.out.println("* Bucket: " + buckets.get(i).name());
+                    System.out.println("  Error listing bucket: " + cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pool.shutdownNow();
+                    deleteListings(futures.subList(i, futures.size()));
+                    break;
                 }
             }
 
@@ -81,6 +115,57 @@ public class S3ListAll {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + ace.getMessage());
         }
-        s3client.close();
+    }
+
+    /**
+     * List all the objects of a bucket, page by page, to a temporary file that is returned.
+     * The lines are written as the pages arrive, so only one page of the bucket is kept in memory.
+     */
+    private static Path listBucket(S3Client s3client, String bucketName) throws IOException {
+        Path listing = Files.createTempFile("s3listall-", ".txt");
+        try (BufferedWriter output = Files.newBufferedWriter(listing, StandardCharsets.UTF_8)) {
+            output.write("* Bucket: " + bucketName + "\n");
+
+            try {
+                ListObjectsV2Request listObjects = ListObjectsV2Request
+                        .builder()
+                        .bucket(bucketName)
+                        .fetchOwner(true)
+                        .build();
+
+                // List Objects, the paginator requests the next page when it is needed
+                for (S3Object myValue : s3client.listObjectsV2Paginator(listObjects).contents()) {
+                    output.write("  - Object: " + myValue.key() +
+                            " (size = " + myValue.size() + " bytes)" +
+                            " (owner = " + myValue.owner() + "\n");
+                }
+            } catch (S3Exception e) {
+                output.write("  Error listing bucket: " + e.awsErrorDetails().errorMessage() +
+                        " (HTTP Status Code: " + e.statusCode() + ")\n");
+            } catch (SdkException e) {
+                output.write("  Error listing bucket: " + e.getMessage() + "\n");
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(listing);
+            throw e;
+        }
+        return listing;
+    }
+
+    /**
+     * Delete the temporary files of the buckets listed but not printed, and cancel the other ones
+     */
+    private static void deleteListings(List<Future<Path>> futures) {
+        for (Future<Path> future : futures) {
+            if (!future.isDone()) {
+                future.cancel(true);
+                continue;
+            }
+            try {
+                Files.deleteIfExists(future.get());
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                // Nothing to delete, or the file is left in the temporary directory
+            }
+        }
     }
 }
@@ -0,0 +1,291 @@
+/**
+ * PrefixMove class with methods for moving all the objects under a key prefix
+ * from a S3 bucket to another S3 bucket.
+ * The objects are copied concurrently while the listing is streamed page by page.
+ * Every source key whose copy has been confirmed goes into a delete batch,
+ * which is deleted with a single DeleteObjects request of BulkDelete when it reaches 1000 keys
+ * or when the flush interval expires, so the deletes follow the copies closely.
+ * On a bucket with versioning only the version copied is deleted, so an object overwritten
+ * after it was copied is kept. On a bucket without versioning the key is deleted, and an
+ * overwrite between the copy and the delete is lost. The source check (off by default)
+ * narrows that window with a HEAD request per object before the delete, at the cost of one
+ * more request per object, but an overwrite between the HEAD and the delete is still lost.
+ */
+
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import example.common.BulkDelete;
+import example.common.S3Keys;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+
+public class PrefixMove {
+    private final S3Client s3client;
+    private final BulkDelete bulkDelete;
+    private final int threads;
+    private final long flushIntervalMillis;
+    private final boolean checkSource;
+
+    private final AtomicLong copiedObjects = new AtomicLong();
+    private final AtomicLong copiedBytes   = new AtomicLong();
+    private final AtomicLong failedObjects = new AtomicLong();   // Objects not copied, or changed after the copy
+
+    /**
+     * Create a prefix move.
+     * A delete batch that is not full is flushed after the flush interval.
+     * With checkSource, an object copied without a version id is only deleted if a HEAD request
+     * shows it has not changed since the copy.
+     */
+    public PrefixMove(S3Client s3client, int threads, long flushIntervalMillis, boolean checkSource) {
+        this.s3client            = s3client;
+        this.bulkDelete          = new BulkDelete(s3client, 1);
+        this.threads             = Math.max(threads, 1);
+        this.flushIntervalMillis = Math.max(flushIntervalMillis, 1);
+        this.checkSource         = checkSource;
+    }
+
+    public long getCopiedObjects() {
+        return copiedObjects.get();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    /**
+     * Return the number of objects copied and deleted from the source bucket
+     */
+    public long getMovedObjects() {
+        return bulkDelete.getDeleted();
+    }
+
+    /**
+     * Return the number of objects that could not be copied or deleted
+     */
+    public long getFailedObjects() {
+        return failedObjects.get() + bulkDelete.getFailed();
+    }
+
+    public long getDeleteRequests() {
+        return bulkDelete.getRequests();
+    }
+
+    /**
+     * Move all the objects whose key starts with the prefix, keeping the same keys in the destination bucket
+     */
+    public void move(String sourceBucketName, String prefix, String destinationBucketName)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Limit the copies waiting for a worker, so the listing does not run too far ahead
+        Semaphore pending = new Semaphore(threads * 4);
+        DeleteBatcher batcher = new DeleteBatcher(sourceBucketName);
+
+        try {
+            ListObjectsV2Request listReq = ListObjectsV2Request.builder()
+                    .bucket(sourceBucketName)
+                    .prefix(prefix)
+                    .build();
+
+            for (ListObjectsV2Response page : s3client.listObjectsV2Paginator(listReq)) {
+                for (S3Object object : page.contents()) {
+                    pending.acquire();
+                    pool.execute(() -> {
+                        try {
+                            CopyObjectResponse copied = copyObject(sourceBucketName, object, destinationBucketName);
+                            if (copied != null) {
+                                batcher.add(object, copied.copySourceVersionId());
+                            }
+                        } finally {
+                            pending.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            // All the copies are done, delete the last batch
+            batcher.close();
+        }
+    }
+
+    /**
+     * Copy an object and return the response if the copy has been confirmed, null otherwise.
+     * The copy only succeeds if the source object has not changed since it was listed.
+     */
+    private CopyObjectResponse copyObject(String sourceBucketName, S3Object object, String destinationBucketName) {
+        try {
+            CopyObjectResponse copyRes = s3client.copyObject(CopyObjectRequest.builder()
+                    .copySource(S3Keys.copySource(sourceBucketName, object.key()))
+                    .copySourceIfMatch(object.eTag())
+                    .destinationBucket(destinationBucketName)
+                    .destinationKey(object.key())
+                    .build());
+            copiedObjects.incrementAndGet();
+            copiedBytes.addAndGet(object.size());
+            return copyRes;
+        } catch (SdkException e) {
+            failedObjects.incrementAndGet();
+            System.out.println("Error copying \"" + object.key() + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Return true if the source object still has the ETag it had when it was copied.
+     * The object can still be overwritten between this check and the delete.
+     */
+    private boolean isUnchanged(String sourceBucketName, String key, String eTag) {
+        try {
+            s3client.headObject(HeadObjectRequest.builder()
+                    .bucket(sourceBucketName)
+                    .key(key)
+                    .ifMatch(eTag)
+                    .build());
+            return true;
+        } catch (S3Exception e) {
+            // 412 if the object has been overwritten, 404 if it has been deleted
+            if (e.statusCode() == 412 || e.statusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Batch of source objects waiting to be deleted.
+     * A batch is deleted by a single thread when it is full or on every flush interval,
+     * so the copy workers never wait for a DeleteObjects request. With the source check, the objects
+     * copied without a version id are checked by a pool of workers before the batch is deleted.
+     */
+    private class DeleteBatcher {
+        private final String sourceBucketName;
+        private final ScheduledExecutorService deleter = Executors.newSingleThreadScheduledExecutor();
+        private final ExecutorService checker = checkSource ? Executors.newFixedThreadPool(threads) : null;
+        private List<Copied> batch = new ArrayList<>(BulkDelete.MAX_BATCH_SIZE);
+
+        DeleteBatcher(String sourceBucketName) {
+            this.sourceBucketName = sourceBucketName;
+            deleter.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Add an object whose copy has been confirmed, with the version id copied if the bucket has versioning
+         */
+        void add(S3Object object, String versionId) {
+            List<Copied> full = null;
+            synchronized (this) {
+                batch.add(new Copied(object.key(), object.eTag(), versionId));
+                if (batch.size() == BulkDelete.MAX_BATCH_SIZE) {
+                    full = batch;
+                    batch = new ArrayList<>(BulkDelete.MAX_BATCH_SIZE);
+                }
+            }
+            if (full != null) {
+                final List<Copied> toDelete = full;
+                deleter.execute(() -> delete(toDelete));
+            }
+        }
+
+        /**
+         * Delete the objects of the current batch, if any
+         */
+        void flush() {
+            List<Copied> toDelete;
+            synchronized (this) {
+                if (batch.isEmpty()) {
+                    return;
+                }
+                toDelete = batch;
+                batch = new ArrayList<>(BulkDelete.MAX_BATCH_SIZE);
+            }
+            delete(toDelete);
+        }
+
+        /**
+         * Delete the versions copied, and the objects without version (only the unchanged ones
+         * with the source check)
+         */
+        private void delete(List<Copied> copied) {
+            List<ObjectIdentifier> toDelete = new ArrayList<>(copied.size());
+            List<Copied> unversioned = new ArrayList<>();
+            List<Future<Boolean>> checks = new ArrayList<>();
+            for (Copied object : copied) {
+                if (object.versionId != null) {
+                    toDelete.add(ObjectIdentifier.builder().key(object.key).versionId(object.versionId).build());
+                } else if (checker == null) {
+                    toDelete.add(ObjectIdentifier.builder().key(object.key).build());
+                } else {
+                    unversioned.add(object);
+                    checks.add(checker.submit(() -> isUnchanged(sourceBucketName, object.key, object.eTag)));
+                }
+            }
+            for (int i = 0; i < unversioned.size(); i++) {
+                String key = unversioned.get(i).key;
+                try {
+                    if (checks.get(i).get()) {
+                        toDelete.add(ObjectIdentifier.builder().key(key).build());
+                    } else {
+                        failedObjects.incrementAndGet();
+                        System.out.println("Not deleting \"" + key + "\" (copied): it has changed since the copy");
+                    }
+                } catch (ExecutionException e) {
+                    failedObjects.incrementAndGet();
+                    System.out.println("Error checking \"" + key + "\" (copied): " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failedObjects.addAndGet(unversioned.size() - i);
+                    break;
+                }
+            }
+            bulkDelete.deleteBatch(sourceBucketName, toDelete);
+        }
+
+        /**
+         * Delete the remaining objects and wait for all the batches
+         */
+        void close() throws InterruptedException {
+            deleter.execute(this::flush);
+            deleter.shutdown();
+            deleter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (checker != null) {
+                checker.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Source object copied: its key, its ETag when it was copied, and the version copied if any
+     */
+    private static class Copied {
+        final String key;
+        final String eTag;
+        final String versionId;
+
+        Copied(String key, String eTag, String versionId) {
+            this.key       = key;
+            this.eTag      = eTag;
+            this.versionId = versionId;
+        }
+    }
+}
@@ -5,39 +5,43 @@
  * SOURCE_BUCKET      = Source bucket name
  * SOURCE_OBJECT      = Source object name
  * DESTINATION_BUCKET = Destination bucket name
+ * Optional parameters:
+ * --prefix              = Move all the objects whose key starts with SOURCE_OBJECT
+ * --threads <N>         = Number of objects copied concurrently in prefix mode
+ * --flush-interval <MS> = Maximum time in milliseconds a copied key waits to be deleted in prefix mode
+ * --check-source        = In prefix mode, check that an object without version is unchanged before deleting it
  */
 
 package example;
 
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import example.common.AwsClients;
+import example.common.S3Objects;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
-import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
-import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
-import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.Delete;
 
 
 public class S3Move {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final int  DEFAULT_THREADS        = 16;              // Default number of concurrent copies
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;            // Default delete flush interval (ms)
 
     public static void main(String[] args) {
         String sourceBucketName;       // Source bucket name
         String sourceKey;              // Source key
         String destinationBucketName;  // Destination bucket name
         String destinationKey;         // Destination key
+        boolean prefixMode = false;    // Move all the objects under a prefix
+        int threads = DEFAULT_THREADS;
+        long flushInterval = DEFAULT_FLUSH_INTERVAL;
+        boolean checkSource = false;   // Check the unversioned objects before deleting them
 
         if (args.length < 3) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3move.jar " +
-                    "<SOURCE_BUCKET> <SOURCE_OBJECT> <DESTINATION_BUCKET>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
@@ -46,44 +50,55 @@ public class S3Move {
         destinationBucketName = args[2];
         destinationKey        = sourceKey;
 
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--prefix":
+                        prefixMode = true;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--flush-interval":
+                        flushInterval = Long.parseLong(args[++i]);
+                        break;
+                    case "--check-source":
+                        checkSource = true;
+                        break;
+                    default:
+                        System.out.println("Unknown parameter: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid parameter value.");
+            printUsage();
+            System.exit(1);
+        }
+
         System.out.println("From - bucket: " + sourceBucketName);
-        System.out.println("From - object: " + sourceKey);
+        System.out.println((prefixMode ? "From - prefix: " : "From - object: ") + sourceKey);
         System.out.println("To   - bucket: " + destinationBucketName);
-        System.out.println("To   - object: " + destinationKey);
+        if (!prefixMode) {
+            System.out.println("To   - object: " + destinationKey);
+        }
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
-        String encodedUrl = null;
-        try {
-            encodedUrl = URLEncoder.encode(sourceBucketName + "/" + sourceKey, StandardCharsets.UTF_8.toString());
-        } catch (UnsupportedEncodingException e) {
-            System.out.println("URL could not be encoded: " + e.getMessage());
+        if (prefixMode) {
+            movePrefix(s3client, sourceBucketName, sourceKey, destinationBucketName, threads, flushInterval,
+                        checkSource);
+            return;
         }
 
         try {
             System.out.println("Moving object ...");
 
-            // Copy object
-            CopyObjectRequest copyReq = CopyObjectRequest.builder()
-                    .copySource(encodedUrl)
-                    .destinationBucket(destinationBucketName)
-                    .destinationKey(destinationKey)
-                    .build();
-
-            CopyObjectResponse copyRes = s3client.copyObject(copyReq);
-
-            // Delete Object
-            ArrayList<ObjectIdentifier> toDelete = new ArrayList<ObjectIdentifier>();
-            toDelete.add(ObjectIdentifier.builder().key(sourceKey).build());
-
-            DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
-                    .bucket(sourceBucketName)
-                    .delete(Delete.builder().objects(toDelete).build())
-                    .build();
-            s3client.deleteObjects(delReq);
+            // Copy object and delete the source object
+            CopyObjectResponse copyRes = S3Objects.moveObject(s3client, sourceBucketName, sourceKey,
+                    destinationBucketName, destinationKey);
 
             System.out.println("Moved");
             System.out.println("Tag information: " + copyRes.copyObjectResult().eTag());
@@ -117,6 +132,48 @@ public class S3Move {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + ace.getMessage());
         }
-        s3client.close();
+    }
+
+    /**
+     * Move all the objects under a prefix, printing a summary at the end
+     */
+    private static void movePrefix(S3Client s3client, String sourceBucketName, String prefix,
+                                   String destinationBucketName, int threads, long flushInterval,
+                                   boolean checkSource) {
+        try {
+            System.out.println("Moving objects ...");
+
+            PrefixMove prefixMove = new PrefixMove(s3client, threads, flushInterval, checkSource);
+            long start = System.nanoTime();
+            prefixMove.move(sourceBucketName, prefix, destinationBucketName);
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+            System.out.println("Moved objects:  " + prefixMove.getMovedObjects() +
+                    " (" + prefixMove.getDeleteRequests() + " delete requests)");
+            System.out.println("Failed objects: " + prefixMove.getFailedObjects());
+            System.out.printf("Moved: %d bytes in %.2f s (%.0f objects/s, %.2f MB/s)\n",
+                    prefixMove.getCopiedBytes(), seconds, prefixMove.getMovedObjects() / seconds,
+                    prefixMove.getCopiedBytes() / seconds / (1024 * 1024));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted");
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                System.out.println("Error: Bucket \"" + sourceBucketName + "\" does not exist!!");
+            }
+            System.out.println("S3Exception: " + e);
+        } catch (SdkException e) {
+            System.out.println("Error listing objects: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3move.jar " +
+                "<SOURCE_BUCKET> <SOURCE_OBJECT> <DESTINATION_BUCKET> " +
+                "[--prefix] [--threads <N>] [--flush-interval <MS>] [--check-source]");
     }
 }
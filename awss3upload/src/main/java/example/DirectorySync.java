@@ -0,0 +1,325 @@
+/**
+ * DirectorySync class with methods for uploading a local directory tree
+ * to a S3 bucket under a key prefix.
+ * Files are uploaded concurrently through a single shared S3AsyncClient,
+ * with a cap on the number of files and bytes in flight. Files bigger than the multipart
+ * threshold are uploaded in parts through the same client and the same cap,
+ * so a file bigger than the cap is uploaded alone.
+ * The thread walking the tree only reads the attributes of the files: the content of the files
+ * is hashed, and the parts are read, on a pool of workers instead of the threads of the SDK.
+ * Files whose remote size and modification time match are skipped.
+ * When an UploadIndex is given, files that have not changed since they were uploaded
+ * are skipped without any S3 request.
+ */
+
+package example;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+
+public class DirectorySync {
+    public static final String MTIME_METADATA = "mtime";   // Metadata with the local modification time
+    private static final int KB = 1024;
+
+    private final S3AsyncClient s3client;
+    private final MultipartUpload multipartUpload;
+    private final long multipartThreshold;
+    private final Semaphore inFlightFiles;
+    private final Semaphore inFlightKBytes;
+    private final int maxInFlightKBytes;
+    private UploadIndex index;
+    private ExecutorService workers;
+
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong skippedFiles  = new AtomicLong();
+    private final AtomicLong failedFiles   = new AtomicLong();
+
+    /**
+     * Create a directory sync.
+     * Files bigger than the multipart threshold are uploaded through the async client
+     * with the part size and the number of parts in flight of the given MultipartUpload.
+     */
+    public DirectorySync(S3AsyncClient s3client, MultipartUpload multipartUpload, long multipartThreshold,
+                         int maxInFlightFiles, long maxInFlightBytes) {
+        this.s3client           = s3client;
+        this.multipartUpload    = multipartUpload;
+        this.multipartThreshold = multipartThreshold;
+        this.inFlightFiles      = new Semaphore(Math.max(maxInFlightFiles, 1));
+        this.maxInFlightKBytes  = (int) Math.min(Integer.MAX_VALUE, Math.max(maxInFlightBytes / KB, 1));
+        this.inFlightKBytes     = new Semaphore(maxInFlightKBytes);
+    }
+
+    /**
+     * Use a local index of uploaded files to skip unchanged files
+     */
+    public void setIndex(UploadIndex index) {
+        this.index = index;
+    }
+
+    public long getUploadedFiles() {
+        return uploadedFiles.get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public long getSkippedFiles() {
+        return skippedFiles.get();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    /**
+     * Upload all the regular files of a local directory tree.
+     * The key of each object is the prefix followed by the path of the file relative to the directory.
+     */
+    public void sync(String bucketName, String keyPrefix, Path directory) throws IOException, InterruptedException {
+        final String prefix = normalizePrefix(keyPrefix);
+        workers = Executors.newFixedThreadPool(Math.max(Runtime.getRuntime().availableProcessors(), 2));
+
+        try {
+            walk(bucketName, prefix, directory);
+
+            // Wait for the uploads in flight
+            inFlightKBytes.acquire(maxInFlightKBytes);
+            inFlightKBytes.release(maxInFlightKBytes);
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Walk the directory tree and sync every regular file
+     */
+    private void walk(String bucketName, String prefix, Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && !isIndexFile(file)) {
+                    String keyName = prefix + toKey(directory.relativize(file));
+                    try {
+                        syncFile(bucketName, keyName, file, attrs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.out.println("Error reading \"" + file + "\": " + e.getMessage());
+                failedFiles.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Upload a file unless it has not changed.
+     * A file has not changed if its index entry matches, or else if the remote object
+     * has the same size and modification time.
+     * The walker only compares the file with its index entry; the file is hashed and uploaded
+     * by the workers and the async client.
+     * The call blocks until there is room for the file in the in-flight limits.
+     */
+    private void syncFile(String bucketName, String keyName, Path file, BasicFileAttributes attrs)
+            throws InterruptedException {
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        UploadIndex.Entry entry = index != null ? index.get(bucketName, keyName) : null;
+
+        if (entry != null && entry.getSize() == size && entry.getMtime() == mtime) {
+            skippedFiles.incrementAndGet();
+            return;
+        }
+
+        int permits = (int) Math.min(maxInFlightKBytes, Math.max(size / KB, 1));
+        inFlightFiles.acquire();
+        inFlightKBytes.acquire(permits);
+
+        // A file already in the index has changed, so there is no need to check the remote object
+        CompletableFuture<HeadObjectResponse> remote = entry != null
+                ? CompletableFuture.completedFuture(null)
+                : headObject(bucketName, keyName);
+
+        // Hashing reads the whole file, so it is done by the workers, not by the walker or the threads of the SDK
+        remote.thenComposeAsync(head -> {
+                    if (isUpToDate(head, size, mtime)) {
+                        skippedFiles.incrementAndGet();
+                        record(bucketName, keyName, size, mtime, null, head.eTag());
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    // Hash the files, so that touching them later does not upload them again
+                    String sha256 = null;
+                    if (index != null) {
+                        try {
+                            sha256 = UploadIndex.sha256(file);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        if (entry != null && entry.getSize() == size && sha256.equals(entry.getSha256())) {
+                            // Same size but touched, with the same content
+                            skippedFiles.incrementAndGet();
+                            record(bucketName, keyName, size, mtime, sha256, entry.getETag());
+                            return CompletableFuture.completedFuture(null);
+                        }
+                    }
+                    final String uploadedHash = sha256;
+                    return upload(bucketName, keyName, file, size, mtime)
+                            .thenAccept(eTag -> {
+                                uploadedFiles.incrementAndGet();
+                                uploadedBytes.addAndGet(size);
+                                record(bucketName, keyName, size, mtime, uploadedHash, eTag);
+                                System.out.println("Uploaded: " + keyName);
+                            });
+                }, workers)
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        failedFiles.incrementAndGet();
+                        System.out.println("Error uploading \"" + keyName + "\": " + cause(e).getMessage());
+                    }
+                    inFlightKBytes.release(permits);
+                    inFlightFiles.release();
+                });
+    }
+
+    /**
+     * Upload a file through the async client and complete with the ETag of the object.
+     * Files bigger than the multipart threshold are uploaded as a multipart upload,
+     * with their parts read by the workers.
+     */
+    private CompletableFuture<String> upload(String bucketName, String keyName, Path file, long size, long mtime) {
+        if (size > multipartThreshold && multipartUpload != null) {
+            return multipartUpload.uploadAsync(s3client, bucketName, keyName, file, mtimeMetadata(mtime), workers)
+                    .thenApply(CompleteMultipartUploadResponse::eTag);
+        }
+        return s3client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(keyName)
+                        .metadata(mtimeMetadata(mtime))
+                        .build(),
+                AsyncRequestBody.fromFile(file))
+                .thenApply(PutObjectResponse::eTag);
+    }
+
+    /**
+     * Describe the remote object, completing with null if it does not exist
+     */
+    private CompletableFuture<HeadObjectResponse> headObject(String bucketName, String keyName) {
+        HeadObjectRequest headReq = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .build();
+
+        return s3client.headObject(headReq)
+                .handle((HeadObjectResponse head, Throwable e) -> {
+                    if (e == null) {
+                        return head;
+                    }
+                    Throwable cause = cause(e);
+                    if (cause instanceof NoSuchKeyException ||
+                            (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404)) {
+                        return null;
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
+
+    /**
+     * Return true if the remote object has the same size and modification time as the local file
+     */
+    private static boolean isUpToDate(HeadObjectResponse head, long size, long mtime) {
+        return head != null && head.contentLength() == size &&
+                String.valueOf(mtime).equals(head.metadata().get(MTIME_METADATA));
+    }
+
+    /**
+     * Record an uploaded (or up to date) file in the index
+     */
+    private void record(String bucketName, String keyName, long size, long mtime, String sha256, String eTag) {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.put(bucketName, keyName, new UploadIndex.Entry(size, mtime, sha256, eTag));
+        } catch (IOException e) {
+            System.out.println("Error writing index \"" + index.getPath() + "\": " + e.getMessage());
+        }
+    }
+
+    private boolean isIndexFile(Path file) {
+        if (index == null) {
+            return false;
+        }
+        Path indexPath = index.getPath().toAbsolutePath().normalize();
+        Path filePath = file.toAbsolutePath().normalize();
+        return filePath.equals(indexPath) || filePath.toString().equals(indexPath + ".tmp");
+    }
+
+    private static Map<String, String> mtimeMetadata(long mtime) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put(MTIME_METADATA, String.valueOf(mtime));
+        return metadata;
+    }
+
+    /**
+     * Return the key prefix ending with a slash, or an empty prefix
+     */
+    private static String normalizePrefix(String keyPrefix) {
+        if (keyPrefix == null || keyPrefix.isEmpty() || keyPrefix.equals("/")) {
+            return "";
+        }
+        return keyPrefix.endsWith("/") ? keyPrefix : keyPrefix + "/";
+    }
+
+    /**
+     * Return a relative path as a key, using slashes as separators
+     */
+    private static String toKey(Path relative) {
+        StringBuilder key = new StringBuilder();
+        for (Path name : relative) {
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(name.toString());
+        }
+        return key.toString();
+    }
+
+    private static Throwable cause(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
@@ -0,0 +1,601 @@
+/**
+ * MultipartUpload class with methods for uploading a local file
+ * to a S3 bucket using a multipart upload.
+ * The file is split into parts that are read straight from a FileChannel
+ * and uploaded concurrently from a bounded pool of workers, so the memory
+ * used does not depend on the size of the file.
+ * A file can also be gzip compressed on the fly, chunk by chunk, into the parts
+ * of the upload, keeping at most one part per worker in memory.
+ */
+
+package example;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+
+public class MultipartUpload {
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;          // S3 minimum part size (except the last one)
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;   // S3 maximum part size
+    public static final int  MAX_PARTS     = 10000;                     // S3 maximum number of parts
+    private static final int MAX_BUFFER    = 2047 * 1024 * 1024;        // Maximum compressed part kept in memory
+    private static final int READ_BUFFER   = 64 * 1024;                 // Buffer used to stream a part
+    public static final String GZIP        = "gzip";                    // Content encoding of compressed uploads
+
+    private final S3Client s3client;
+    private final long partSize;
+    private final int threads;
+    private final AtomicLong bytesUploaded = new AtomicLong();
+
+    public MultipartUpload(S3Client s3client, long partSize, int threads) {
+        this.s3client = s3client;
+        this.partSize = Math.min(Math.max(partSize, MIN_PART_SIZE), MAX_PART_SIZE);
+        this.threads  = Math.max(threads, 1);
+    }
+
+    /**
+     * Return the number of bytes uploaded so far
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    /**
+     * Upload a local file as a multipart upload and return the response of the completed upload.
+     * The multipart upload is aborted if any part fails.
+     */
+    public CompleteMultipartUploadResponse upload(String bucketName, String keyName, Path file,
+                                                  Map<String, String> metadata) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long size = partSizeFor(fileSize);
+            int partCount = (int) Math.max(1, (fileSize + size - 1) / size);
+
+            System.out.println("Parts:      " + partCount + " x " + size + " bytes, " + threads + " threads");
+
+            CreateMultipartUploadRequest createReq = CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(keyName)
+                    .metadata(metadata)
+                    .build();
+            String uploadId = s3client.createMultipartUpload(createReq).uploadId();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<CompletedPart>> futures = new ArrayList<>(partCount);
+                for (int i = 0; i < partCount; i++) {
+                    final int partNumber = i + 1;
+                    final long offset = i * size;
+                    final long length = Math.min(size, fileSize - offset);
+                    futures.add(pool.submit(() ->
+                            uploadPart(channel, bucketName, keyName, uploadId, partNumber, offset, length)));
+                }
+
+                List<CompletedPart> parts = new ArrayList<>(partCount);
+                for (Future<CompletedPart> future : futures) {
+                    parts.add(future.get());
+                }
+
+                CompleteMultipartUploadRequest completeReq = CompleteMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(keyName)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                        .build();
+                return s3client.completeMultipartUpload(completeReq);
+
+            } catch (InterruptedException | ExecutionException | RuntimeException e) {
+                pool.shutdownNow();
+                abort(bucketName, keyName, uploadId);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                throw unwrap(e);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Upload a local file as a multipart upload through an async client
+     * and complete with the response of the completed upload.
+     * Up to the number of threads of this upload, parts are read into memory on the executor
+     * and uploaded at the same time, so no thread is blocked while the parts are in flight.
+     * The multipart upload is aborted if any part fails.
+     */
+    public CompletableFuture<CompleteMultipartUploadResponse> uploadAsync(S3AsyncClient s3AsyncClient,
+            String bucketName, String keyName, Path file, Map<String, String> metadata, Executor executor) {
+        FileChannel channel;
+        long fileSize;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return failed(e);
+        }
+        try {
+            fileSize = channel.size();
+        } catch (IOException e) {
+            closeQuietly(channel);
+            return failed(e);
+        }
+
+        long size = partSizeFor(fileSize);
+        if (size > MAX_BUFFER) {
+            closeQuietly(channel);
+            return failed(SdkClientException.create("Part size of " + size + " bytes is too big to be kept in memory"));
+        }
+        CompletedPart[] parts = new CompletedPart[(int) Math.max(1, (fileSize + size - 1) / size)];
+        AtomicInteger nextPart = new AtomicInteger();
+
+        CreateMultipartUploadRequest createReq = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .metadata(metadata)
+                .build();
+
+        return s3AsyncClient.createMultipartUpload(createReq)
+                .thenCompose(created -> {
+                    String uploadId = created.uploadId();
+
+                    // Every lane uploads the next part that is not taken until there are no parts left
+                    List<CompletableFuture<Void>> lanes = new ArrayList<>();
+                    for (int i = 0; i < Math.min(threads, parts.length); i++) {
+                        lanes.add(uploadParts(s3AsyncClient, executor, channel, bucketName, keyName, uploadId,
+                                parts, nextPart, size, fileSize));
+                    }
+
+                    return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0]))
+                            .thenCompose(v -> s3AsyncClient.completeMultipartUpload(
+                                    CompleteMultipartUploadRequest.builder()
+                                            .bucket(bucketName)
+                                            .key(keyName)
+                                            .uploadId(uploadId)
+                                            .multipartUpload(CompletedMultipartUpload.builder()
+                                                    .parts(Arrays.asList(parts))
+                                                    .build())
+                                            .build()))
+                            .handle((response, e) -> e == null
+                                    ? CompletableFuture.completedFuture(response)
+                                    : abortAsync(s3AsyncClient, bucketName, keyName, uploadId)
+                                            .thenCompose(aborted -> MultipartUpload.<CompleteMultipartUploadResponse>failed(e)))
+                            .thenCompose(result -> result);
+                })
+                .whenComplete((response, e) -> closeQuietly(channel));
+    }
+
+    /**
+     * Upload a local file compressed with gzip as a multipart upload
+     * and return the response of the completed upload.
+     * The file is compressed in a stream and every time a part is full it is uploaded
+     * while the next one is being compressed. The object is stored with Content-Encoding gzip.
+     * The multipart upload is aborted if any part fails.
+     */
+    public CompleteMultipartUploadResponse uploadCompressed(String bucketName, String keyName, Path file,
+                                                            Map<String, String> metadata) throws IOException {
+        System.out.println("Parts:      " + partSize + " bytes of compressed data, " + threads + " threads");
+
+        CreateMultipartUploadRequest createReq = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .metadata(metadata)
+                .contentEncoding(GZIP)
+                .build();
+        String uploadId = s3client.createMultipartUpload(createReq).uploadId();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CompressedPartWriter parts = new CompressedPartWriter(pool, bucketName, keyName, uploadId);
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream gzip = new GZIPOutputStream(parts, READ_BUFFER)) {
+                byte[] buffer = new byte[READ_BUFFER];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    gzip.write(buffer, 0, n);
+                }
+            }
+
+            List<CompletedPart> completed = new ArrayList<>(parts.futures.size());
+            for (Future<CompletedPart> future : parts.futures) {
+                completed.add(future.get());
+            }
+
+            CompleteMultipartUploadRequest completeReq = CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(keyName)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build();
+            return s3client.completeMultipartUpload(completeReq);
+
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            pool.shutdownNow();
+            abort(bucketName, keyName, uploadId);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw unwrap(e);
+        } catch (IOException e) {
+            pool.shutdownNow();
+            abort(bucketName, keyName, uploadId);
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Return the part size to use for a file, so that the upload fits in the maximum number of parts
+     */
+    private long partSizeFor(long fileSize) {
+        long minSize = (fileSize + MAX_PARTS - 1) / MAX_PARTS;
+        return Math.max(partSize, minSize);
+    }
+
+    /**
+     * Upload one part reading it straight from the file channel
+     */
+    private CompletedPart uploadPart(FileChannel channel, String bucketName, String keyName, String uploadId,
+                                     int partNumber, long offset, long length) {
+        UploadPartRequest partReq = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength(length)
+                .build();
+
+        RequestBody body = RequestBody.fromContentProvider(
+                () -> new ChannelRangeInputStream(channel, offset, length),
+                length,
+                "application/octet-stream");
+
+        UploadPartResponse partRes = s3client.uploadPart(partReq, body);
+        bytesUploaded.addAndGet(length);
+
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(partRes.eTag())
+                .build();
+    }
+
+    /**
+     * Upload one part from a buffer in memory
+     */
+    private CompletedPart uploadPart(byte[] bytes, int length, String bucketName, String keyName,
+                                     String uploadId, int partNumber) {
+        UploadPartRequest partReq = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) length)
+                .build();
+
+        RequestBody body = RequestBody.fromContentProvider(
+                () -> new ByteArrayInputStream(bytes, 0, length),
+                length,
+                "application/octet-stream");
+
+        UploadPartResponse partRes = s3client.uploadPart(partReq, body);
+        bytesUploaded.addAndGet(length);
+
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(partRes.eTag())
+                .build();
+    }
+
+    /**
+     * Upload the parts not taken yet, one after the other, reading each part on the executor.
+     * When a part fails, no more parts are taken by any lane.
+     */
+    private CompletableFuture<Void> uploadParts(S3AsyncClient s3AsyncClient, Executor executor, FileChannel channel,
+                                                String bucketName, String keyName, String uploadId,
+                                                CompletedPart[] parts, AtomicInteger nextPart,
+                                                long size, long fileSize) {
+        int index = nextPart.getAndIncrement();
+        if (index >= parts.length) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long offset = index * size;
+        int length = (int) Math.min(size, fileSize - offset);
+
+        UploadPartRequest partReq = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(keyName)
+                .uploadId(uploadId)
+                .partNumber(index + 1)
+                .contentLength((long) length)
+                .build();
+
+        return CompletableFuture.supplyAsync(() -> readPart(channel, offset, length), executor)
+                .thenCompose(bytes -> s3AsyncClient.uploadPart(partReq, AsyncRequestBody.fromBytes(bytes)))
+                .thenCompose(partRes -> {
+                    bytesUploaded.addAndGet(length);
+                    parts[index] = CompletedPart.builder()
+                            .partNumber(index + 1)
+                            .eTag(partRes.eTag())
+                            .build();
+                    return uploadParts(s3AsyncClient, executor, channel, bucketName, keyName, uploadId,
+                            parts, nextPart, size, fileSize);
+                })
+                .whenComplete((v, e) -> {
+                    if (e != null) {
+                        nextPart.set(parts.length);
+                    }
+                });
+    }
+
+    /**
+     * Read a part of a file into memory with positional reads
+     */
+    private static byte[] readPart(FileChannel channel, long offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + (offset + buffer.position()));
+                }
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return bytes;
+    }
+
+    /**
+     * Abort a multipart upload through an async client, completing normally even if it cannot be aborted
+     */
+    private static CompletableFuture<Void> abortAsync(S3AsyncClient s3AsyncClient, String bucketName,
+                                                      String keyName, String uploadId) {
+        return s3AsyncClient.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(keyName)
+                        .uploadId(uploadId)
+                        .build())
+                .handle((response, e) -> {
+                    if (e == null) {
+                        System.out.println("Multipart upload aborted");
+                    } else {
+                        System.out.println("Multipart upload could not be aborted: " + e.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do, the channel was only read
+        }
+    }
+
+    /**
+     * Abort a multipart upload so that the uploaded parts are not stored
+     */
+    private void abort(String bucketName, String keyName, String uploadId) {
+        try {
+            s3client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(keyName)
+                    .uploadId(uploadId)
+                    .build());
+            System.out.println("Multipart upload aborted");
+        } catch (SdkException e) {
+            System.out.println("Multipart upload could not be aborted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Return the exception that caused a part to fail
+     */
+    private static RuntimeException unwrap(Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return SdkClientException.create("Multipart upload failed: " + cause, cause);
+    }
+
+
+    /**
+     * InputStream over a range of a FileChannel.
+     * It uses positional reads, so several streams can share the same channel.
+     */
+    private static class ChannelRangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        private long position;
+        private long remaining;
+
+        ChannelRangeInputStream(FileChannel channel, long offset, long length) {
+            this.channel   = channel;
+            this.position  = offset;
+            this.remaining = length;
+            buffer.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int n = channel.read(buffer, position);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of file at position " + position);
+                }
+                position  += n;
+                remaining -= n;
+                buffer.flip();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+
+    /**
+     * OutputStream that collects the compressed data in part sized buffers.
+     * Every full buffer is uploaded as a part by the pool. At most one buffer per
+     * worker is in flight, so writing blocks while all the workers are busy.
+     */
+    private class CompressedPartWriter extends OutputStream {
+        private final ExecutorService pool;
+        private final String bucketName;
+        private final String keyName;
+        private final String uploadId;
+        private final Semaphore inFlight = new Semaphore(threads);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final List<Future<CompletedPart>> futures = new ArrayList<>();
+        private byte[] buffer;
+        private int count;
+        private boolean closed;
+
+        CompressedPartWriter(ExecutorService pool, String bucketName, String keyName, String uploadId) {
+            this.pool       = pool;
+            this.bucketName = bucketName;
+            this.keyName    = keyName;
+            this.uploadId   = uploadId;
+            this.buffer     = new byte[bufferSize()];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off   += n;
+                len   -= n;
+                if (count == buffer.length) {
+                    submitPart();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (count > 0 || futures.isEmpty()) {
+                    submitPart();
+                }
+            }
+        }
+
+        /**
+         * Hand the current buffer to the pool and start a new one
+         */
+        private void submitPart() throws IOException {
+            Throwable e = failure.get();
+            if (e != null) {
+                throw new IOException("Upload of a part failed: " + e.getMessage(), e);
+            }
+            int partNumber = futures.size() + 1;
+            if (partNumber > MAX_PARTS) {
+                throw new IOException("Compressed file needs more than " + MAX_PARTS +
+                        " parts, use a bigger part size");
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+
+            final byte[] bytes = buffer;
+            final int length = count;
+            futures.add(pool.submit(() -> {
+                try {
+                    return uploadPart(bytes, length, bucketName, keyName, uploadId, partNumber);
+                } catch (RuntimeException re) {
+                    failure.compareAndSet(null, re);
+                    throw re;
+                } finally {
+                    inFlight.release();
+                }
+            }));
+
+            buffer = closed ? null : new byte[bufferSize()];
+            count = 0;
+        }
+
+        /**
+         * Return the size of a part buffer, the part size limited to what a byte array can hold
+         */
+        private int bufferSize() {
+            return (int) Math.min(partSize, MAX_BUFFER);
+        }
+    }
+}
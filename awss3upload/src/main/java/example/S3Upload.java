@@ -5,37 +5,62 @@
  * BUCKET_NAME     = Bucket name
  * OBJECT_NAME     = Object name in the bucket
  * LOCAL_FILE_NAME = Local file name
+ * Optional parameters:
+ * --multipart        = Force a multipart upload
+ * --gzip             = Compress the file with gzip while it is uploaded (Content-Encoding: gzip)
+ * --part-size <MB>   = Part size in MB for multipart uploads
+ * --threads <N>      = Number of parts (or files in directory mode) uploaded concurrently
+ * --max-in-flight <MB> = Maximum MB of files uploaded at the same time in directory mode
+ * --index <FILE>     = Local index of uploaded files in directory mode
+ * --no-index         = Do not use a local index in directory mode
+ * Files bigger than the multipart threshold are always uploaded as a multipart upload.
+ * If LOCAL_FILE_NAME is a directory, all its files are uploaded using OBJECT_NAME as key prefix,
+ * skipping files that have not changed since they were uploaded.
  */
 
 package example;
 
 import java.io.IOException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import example.common.AwsClients;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 
 
 public class S3Upload {
     private static final Region REGION = Region.of("eu-west-1");      // Region name
+    private static final long MULTIPART_THRESHOLD = 100L * 1024 * 1024; // Files bigger than this use multipart
+    private static final long DEFAULT_PART_SIZE   = 16L * 1024 * 1024;  // Default part size
+    private static final int  DEFAULT_THREADS     = 8;                  // Default number of concurrent parts
+    private static final long DEFAULT_MAX_IN_FLIGHT = 256L * 1024 * 1024; // Default bytes in flight in directory mode
 
     public static void main(String[] args) {
         String bucketName;              // Bucket name
         String keyName;                 // Key name, it is the object name
         String localFileName;           // Upload local file name
+        boolean multipart = false;      // Force a multipart upload
+        boolean gzip = false;           // Compress the file while it is uploaded
+        long partSize = DEFAULT_PART_SIZE;
+        int threads = DEFAULT_THREADS;
+        long maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        String indexFileName = null;    // Local index of uploaded files
+        boolean useIndex = true;
 
         if (args.length < 3) {
-            System.out.println("Not enough parameters.\n" +
-                    "Proper Usage is: java -jar s3upload.jar " +
-                    "<BUCKET_NAME> <OBJECT_NAME> <LOCAL_FILE_NAME>");
+            System.out.println("Not enough parameters.");
+            printUsage();
             System.exit(1);
         }
 
@@ -43,40 +68,111 @@ public class S3Upload {
         keyName       = args[1];
         localFileName = args[2];
 
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--multipart":
+                        multipart = true;
+                        break;
+                    case "--gzip":
+                        gzip = true;
+                        break;
+                    case "--part-size":
+                        partSize = Long.parseLong(args[++i]);
+                        if (partSize < 1 || partSize > MultipartUpload.MAX_PART_SIZE / (1024 * 1024)) {
+                            throw new NumberFormatException("Invalid part size: " + partSize);
+                        }
+                        partSize *= 1024 * 1024;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-in-flight":
+                        maxInFlight = Long.parseLong(args[++i]) * 1024 * 1024;
+                        break;
+                    case "--index":
+                        indexFileName = args[++i];
+                        break;
+                    case "--no-index":
+                        useIndex = false;
+                        break;
+                    default:
+                        System.out.println("Unknown parameter: " + args[i]);
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid parameter value.");
+            printUsage();
+            System.exit(1);
+        }
+
         System.out.println("Bucket:     " + bucketName);
         System.out.println("Object/Key: " + keyName);
         System.out.println("Local file: " + localFileName);
 
-        // Instantiates a client
-        S3Client s3client = S3Client.builder()
-                .region(REGION)
-                .build();
+        // Gets the shared client
+        S3Client s3client = AwsClients.s3(REGION);
 
         try {
-            System.out.println("Uploading an object to S3 from a file ...");
-
             // Get local file
             File file = new File(localFileName);
-            if (file.exists()) {
+            if (file.isDirectory() && gzip) {
+                System.out.println("Error: --gzip is not supported when uploading a directory.");
+            } else if (file.isDirectory()) {
+                System.out.println("Uploading a directory to S3 ...");
+
+                Path indexFile = null;
+                if (useIndex) {
+                    indexFile = indexFileName != null ? Paths.get(indexFileName)
+                            : UploadIndex.defaultPathFor(file.toPath());
+                }
+                syncDirectory(s3client, bucketName, keyName, file.toPath(), indexFile,
+                        partSize, threads, maxInFlight);
+
+            } else if (file.exists()) {
+                System.out.println("Uploading an object to S3 from a file ...");
+
+
                 // Upload object
                 Map<String, String> metadata = new HashMap<>();
                 metadata.put("myVal", "myFile");
 
-                PutObjectRequest putOb = PutObjectRequest.builder()
-                        .bucket(bucketName)
-                        .key(keyName)
-                        .metadata(metadata)
-                        .build();
+                long start = System.nanoTime();
+                String eTag;
 
-                PutObjectResponse response = s3client.putObject(putOb,
-                        RequestBody.fromBytes(getObjectFile(localFileName)));
+                if (gzip) {
+                    MultipartUpload upload = new MultipartUpload(s3client, partSize, threads);
+                    CompleteMultipartUploadResponse response = upload.uploadCompressed(bucketName, keyName,
+                            file.toPath(), metadata);
+                    eTag = response.eTag();
+                    System.out.printf("Compressed: %d bytes -> %d bytes\n", file.length(), upload.getBytesUploaded());
+                } else if (multipart || file.length() > MULTIPART_THRESHOLD) {
+                    MultipartUpload upload = new MultipartUpload(s3client, partSize, threads);
+                    CompleteMultipartUploadResponse response = upload.upload(bucketName, keyName,
+                            file.toPath(), metadata);
+                    eTag = response.eTag();
+                } else {
+                    PutObjectRequest putOb = PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(keyName)
+                            .metadata(metadata)
+                            .build();
+
+                    PutObjectResponse response = s3client.putObject(putOb, RequestBody.fromFile(file));
+                    eTag = response.eTag();
+                }
 
                 System.out.println("Uploaded");
-                System.out.println("Tag information: " + response.eTag());
+                System.out.println("Tag information: " + eTag);
+                printThroughput(file.length(), System.nanoTime() - start);
 
             } else {
                 System.out.printf("Error: Local file \"%s\" does NOT exist.", localFileName);
             }
+        } catch (IOException e) {
+            System.out.println("Error reading local file: " + e.getMessage());
         } catch (S3Exception e) {
             if (e.statusCode() == 404) {
                 System.out.println("Error: Bucket does NOT exists!!");
@@ -103,32 +199,65 @@ public class S3Upload {
                     "such as not being able to access the network.");
             System.out.println("Error Message: " + se.getMessage());
         }
-        s3client.close();
     }
 
-    // Return a byte array
-    private static byte[] getObjectFile(String filePath) {
+    /**
+     * Print the usage of the application
+     */
+    private static void printUsage() {
+        System.out.println("Proper Usage is: java -jar s3upload.jar " +
+                "<BUCKET_NAME> <OBJECT_NAME> <LOCAL_FILE_NAME> " +
+                "[--multipart] [--gzip] [--part-size <MB>] [--threads <N>] [--max-in-flight <MB>] " +
+                "[--index <FILE> | --no-index]");
+    }
 
-        FileInputStream fileInputStream = null;
-        byte[] bytesArray = null;
+    /**
+     * Upload a local directory tree through a shared async client.
+     * If an index file is given, it is used to skip the files that have not changed.
+     */
+    private static void syncDirectory(S3Client s3client, String bucketName, String keyPrefix, Path directory,
+                                      Path indexFile, long partSize, int threads, long maxInFlight)
+            throws IOException {
+        // Gets the shared async client
+        S3AsyncClient s3AsyncClient = AwsClients.s3Async(REGION);
+        UploadIndex index = null;
 
         try {
-            File file = new File(filePath);
-            bytesArray = new byte[(int) file.length()];
-            fileInputStream = new FileInputStream(file);
-            fileInputStream.read(bytesArray);
+            MultipartUpload multipartUpload = new MultipartUpload(s3client, partSize, threads);
+            DirectorySync sync = new DirectorySync(s3AsyncClient, multipartUpload, MULTIPART_THRESHOLD,
+                    threads, maxInFlight);
+            long start = System.nanoTime();
 
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (indexFile != null) {
+                index = UploadIndex.open(indexFile);
+                sync.setIndex(index);
+                System.out.println("Index:      " + indexFile + " (" + index.size() + " entries)");
+            }
+
+            sync.sync(bucketName, keyPrefix, directory);
+
+            System.out.println("Uploaded");
+            System.out.println("Files uploaded: " + sync.getUploadedFiles());
+            System.out.println("Files skipped:  " + sync.getSkippedFiles());
+            System.out.println("Files failed:   " + sync.getFailedFiles());
+            printThroughput(sync.getUploadedBytes(), System.nanoTime() - start);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Upload interrupted");
         } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (index != null) {
+                index.close();
             }
         }
-        return bytesArray;
+    }
+
+    /**
+     * Print the aggregate throughput of an upload
+     */
+    private static void printThroughput(long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        System.out.printf("Transferred: %d bytes in %.2f s (%.2f MB/s)\n",
+                bytes, seconds, bytes / seconds / (1024 * 1024));
     }
 }
@@ -0,0 +1,333 @@
+/**
+ * UploadIndex class with methods for keeping a local index of the files
+ * already uploaded to S3.
+ * Each entry maps an object (bucket and key) to the size, modification time
+ * and SHA-256 of the local file and the ETag returned by S3.
+ * The index is a text file with one tab separated entry per line.
+ * Objects whose key contains a line break are not written to the file.
+ * New entries are appended, and the last entry of an object wins when the index is loaded.
+ * The appended entries are flushed to the file every 1000 entries, or with the first entry
+ * appended 5 seconds after the last flush, so a crash loses few entries; their files are
+ * checked again with S3 on the next run.
+ * In memory, the sizes, modification times and hashes are kept in primitive arrays
+ * indexed by the slot of each object, instead of an object per entry.
+ */
+
+package example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class UploadIndex implements AutoCloseable {
+    private static final String HEADER  = "#s3upload-index v1";   // First line of the index file
+    private static final String NO_HASH = "-";                    // Hash of a file that has not been read
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int HASH_SIZE   = 32;                     // Bytes of a SHA-256
+    private static final int FLUSH_ENTRIES = 1000;                 // Entries appended between flushes
+    private static final long FLUSH_MILLIS = 5000;                 // Maximum time between flushes
+
+    private final Path path;
+    private final Map<String, Integer> slots = new HashMap<>();   // Slot of the entry of each object
+    private long[] sizes    = new long[16];
+    private long[] mtimes   = new long[16];
+    private byte[] hashes   = new byte[16 * HASH_SIZE];
+    private String[] eTags  = new String[16];
+    private final BitSet hashed = new BitSet();                  // Slots with a hash
+    private BufferedWriter writer;
+    private int unflushed;
+    private long flushedMillis = System.currentTimeMillis();
+
+    private UploadIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Load an index from a file, or create an empty index if the file does not exist.
+     * The file is compacted when most of its lines are superseded entries.
+     */
+    public static UploadIndex open(Path path) throws IOException {
+        UploadIndex index = new UploadIndex(path);
+        long lines = 0;
+
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    lines++;
+                    index.parse(line);
+                }
+            }
+        }
+
+        if (lines == 0 || lines > 2L * index.slots.size()) {
+            index.compact();
+        }
+        return index;
+    }
+
+    /**
+     * Return the index file to use for a local directory when none is given
+     */
+    public static Path defaultPathFor(Path directory) {
+        Path absolute = directory.toAbsolutePath().normalize();
+        return Paths.get(absolute.toString() + ".s3index");
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Return the entry of an object, or null if it is not in the index
+     */
+    public synchronized Entry get(String bucketName, String keyName) {
+        Integer slot = slots.get(bucketName + "/" + keyName);
+        return slot == null ? null : entry(slot);
+    }
+
+    /**
+     * Add or replace the entry of an object, appending it to the index file
+     */
+    public synchronized void put(String bucketName, String keyName, Entry entry) throws IOException {
+        String id = bucketName + "/" + keyName;
+        store(id, entry);
+        if (isWritable(id)) {
+            writer().write(format(id, entry));
+            unflushed++;
+            if (unflushed >= FLUSH_ENTRIES || System.currentTimeMillis() - flushedMillis >= FLUSH_MILLIS) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write all the entries to a new index file, replacing the old one
+     */
+    public synchronized void compact() throws IOException {
+        closeWriter();
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Paths.get(path.toString() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (Map.Entry<String, Integer> e : slots.entrySet()) {
+                if (isWritable(e.getKey())) {
+                    out.write(format(e.getKey(), entry(e.getValue())));
+                }
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flush the entries appended so far to the index file
+     */
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        unflushed = 0;
+        flushedMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeWriter();
+    }
+
+    private BufferedWriter writer() throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return writer;
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Store an entry in the slot of its object, adding a slot for a new object
+     */
+    private void store(String id, Entry entry) {
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            slot = slots.size();
+            if (slot == sizes.length) {
+                int capacity = sizes.length * 2;
+                sizes  = Arrays.copyOf(sizes, capacity);
+                mtimes = Arrays.copyOf(mtimes, capacity);
+                hashes = Arrays.copyOf(hashes, capacity * HASH_SIZE);
+                eTags  = Arrays.copyOf(eTags, capacity);
+            }
+            slots.put(id, slot);
+        }
+        sizes[slot]  = entry.size;
+        mtimes[slot] = entry.mtime;
+        eTags[slot]  = entry.eTag;
+        byte[] hash = entry.sha256 != null ? fromHex(entry.sha256) : null;
+        if (hash != null) {
+            System.arraycopy(hash, 0, hashes, slot * HASH_SIZE, HASH_SIZE);
+        }
+        hashed.set(slot, hash != null);
+    }
+
+    /**
+     * Return the entry stored in a slot
+     */
+    private Entry entry(int slot) {
+        String hash = hashed.get(slot) ? toHex(hashes, slot * HASH_SIZE, HASH_SIZE) : null;
+        return new Entry(sizes[slot], mtimes[slot], hash, eTags[slot]);
+    }
+
+    /**
+     * Parse a line "bucket/key TAB size TAB mtime TAB sha256 TAB etag" into the index.
+     * Malformed lines (for example a line cut by a crash) are ignored.
+     */
+    private void parse(String line) {
+        int t4 = line.lastIndexOf('\t');
+        int t3 = t4 > 0 ? line.lastIndexOf('\t', t4 - 1) : -1;
+        int t2 = t3 > 0 ? line.lastIndexOf('\t', t3 - 1) : -1;
+        int t1 = t2 > 0 ? line.lastIndexOf('\t', t2 - 1) : -1;
+        if (t1 <= 0) {
+            return;
+        }
+        try {
+            long size  = Long.parseLong(line.substring(t1 + 1, t2));
+            long mtime = Long.parseLong(line.substring(t2 + 1, t3));
+            String hash = line.substring(t3 + 1, t4);
+            String eTag = line.substring(t4 + 1);
+            store(line.substring(0, t1), new Entry(size, mtime, NO_HASH.equals(hash) ? null : hash, eTag));
+        } catch (NumberFormatException e) {
+            // Ignore malformed line
+        }
+    }
+
+    /**
+     * Return true if an object can be written on a line of the index file.
+     * Lines are read back at any '\n' or '\r', so an object with one of them in its key
+     * is only kept in memory and is checked again with S3 on the next run.
+     */
+    private static boolean isWritable(String id) {
+        return id.indexOf('\n') < 0 && id.indexOf('\r') < 0;
+    }
+
+    private static String format(String id, Entry entry) {
+        return id + '\t' + entry.size + '\t' + entry.mtime + '\t' +
+                (entry.sha256 == null ? NO_HASH : entry.sha256) + '\t' + entry.eTag + '\n';
+    }
+
+    /**
+     * Return the SHA-256 of a file as a hex string
+     */
+    public static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest(), 0, HASH_SIZE);
+    }
+
+    private static String toHex(byte[] bytes, int offset, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Return the bytes of a SHA-256 hex string, or null if it is not one
+     */
+    private static byte[] fromHex(String hex) {
+        if (hex.length() != HASH_SIZE * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Entry of the index for an uploaded file
+     */
+    public static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String sha256;
+        private final String eTag;
+
+        public Entry(long size, long mtime, String sha256, String eTag) {
+            this.size   = size;
+            this.mtime  = mtime;
+            this.sha256 = sha256;
+            this.eTag   = eTag;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        /**
+         * Return the SHA-256 of the file, or null if the file has not been hashed
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}